@@ -53,10 +53,7 @@ public class EnhancedFormatExcelExport extends ExcelExport {
         this.setTotalsIntegerStyle(style);
 
         // we want the rowHeader style to be like the columnHeader style, just centered differently.
-        final CellStyle newStyle = workbook.createCellStyle();
-        newStyle.cloneStyleFrom(style);
-        newStyle.setAlignment(HorizontalAlignment.LEFT);
-        this.setRowHeaderStyle(newStyle);
+        this.setRowHeaderStyle(getCellStyleRegistry().withAlignment(style, HorizontalAlignment.LEFT));
     }
 
     private void setStyle(CellStyle style, short foregroundColor, int fontHeight, short fontColor,
@@ -114,8 +114,6 @@ public class FontExampleExcelExport extends ExcelExport {
         style.setTopBorderColor(HSSFColorPredefined.BLACK.getIndex());
         style.setBottomBorderColor(HSSFColorPredefined.BLACK.getIndex());
 
-        final CellStyle newStyle = workbook.createCellStyle();
-        newStyle.cloneStyleFrom(style);
-        this.setRowHeaderStyle(newStyle);
+        this.setRowHeaderStyle(getCellStyleRegistry().withAlignment(style, HorizontalAlignment.LEFT));
     }
 }
@@ -0,0 +1,43 @@
+package com.vaadin.addon.tableexport;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+
+/**
+ * Sizes the columns exactly with {@link Sheet#autoSizeColumn(int)}, which measures the rendered
+ * text of every cell of the column. Accurate, but the slowest phase of exports with many rows.
+ * On streaming sheets the columns are tracked for auto-sizing, so rows are measured before they
+ * are flushed.
+ */
+public class AutoSizeColumnWidthStrategy implements ColumnWidthStrategy {
+
+    private static final long serialVersionUID = -6024410716935185233L;
+
+    @Override
+    public void start(Sheet sheet, ColumnPlan plan) {
+        if (sheet instanceof SXSSFSheet) {
+            // streamed rows are measured as they are flushed from the row access window
+            ((SXSSFSheet) sheet).trackAllColumnsForAutoSizing();
+        }
+    }
+
+    @Override
+    public boolean isMeasuring() {
+        return false;
+    }
+
+    @Override
+    public void measure(int col, Object value) {
+    }
+
+    @Override
+    public void endRow() {
+    }
+
+    @Override
+    public void apply(Sheet sheet, ColumnPlan plan) {
+        for (int col = 0; col < plan.size(); col++) {
+            sheet.autoSizeColumn(col);
+        }
+    }
+}
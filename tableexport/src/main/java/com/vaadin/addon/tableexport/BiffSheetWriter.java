@@ -0,0 +1,292 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.DBCellRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.util.LittleEndianOutputStream;
+
+/**
+ * Writes the row and cell records of a BIFF8 (.xls) worksheet to a spool file, one block of up
+ * to 32 rows at a time. The cells of a block are buffered until the block is complete, then the
+ * ROW records of the block, its cells and the DBCELL record indexing them are written, so only
+ * one block is held in memory. The spooled records are placed between the DIMENSIONS and
+ * WINDOW2 records of the sheet by {@link XlsExport}, together with an INDEX record pointing to
+ * the {@link #getBlockOffsets() DBCELL records}.
+ */
+final class BiffSheetWriter {
+
+    static final int ROWS_PER_BLOCK = 32;
+    static final int MAX_ROW = SpreadsheetVersion.EXCEL97.getLastRowIndex();
+
+    /** Longest text written as a LABEL record instead of through the shared string table. */
+    private static final int MAX_LABEL_LENGTH = 255;
+
+    private static final int ROW_ALWAYS_SET = 0x0100;
+    private static final int ROW_COLLAPSED = 0x0010;
+    private static final int ROW_ZERO_HEIGHT = 0x0020;
+    private static final int ROW_CUSTOM_HEIGHT = 0x0040;
+    private static final int ROW_DEFAULT_HEIGHT = 0x00FF;
+    private static final int ROW_DEFAULT_XF = 0x000F;
+
+    private final File file;
+    private final LittleEndianOutputStream out;
+    private final ToIntFunction<String> sharedStrings;
+
+    private final ByteArrayOutputStream cellBytes = new ByteArrayOutputStream(1 << 14);
+    private final LittleEndianOutputStream cells = new LittleEndianOutputStream(cellBytes);
+
+    /* the rows of the current block */
+    private final int[] rows = new int[ROWS_PER_BLOCK];
+    private final int[] heights = new int[ROWS_PER_BLOCK];
+    private final int[] options = new int[ROWS_PER_BLOCK];
+    private final int[] firstCols = new int[ROWS_PER_BLOCK];
+    private final int[] lastCols = new int[ROWS_PER_BLOCK];
+    private final int[] cellsEnd = new int[ROWS_PER_BLOCK];
+    private int blockRows = 0;
+
+    private long length = 0;
+    private long[] blockOffsets = new long[16];
+    private int blockCount = 0;
+    private int lastRow = -1;
+    private int maxCol = 0;
+
+    /**
+     * @param file          the spool file
+     * @param sharedStrings returns the index of a text in the shared string table, or -1 to write
+     *                      the text as a LABEL record
+     */
+    BiffSheetWriter(File file, ToIntFunction<String> sharedStrings) throws IOException {
+        this.file = file;
+        this.out = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        this.sharedStrings = sharedStrings;
+    }
+
+    /**
+     * Starts a row. Rows must be started in ascending order.
+     *
+     * @param row          the row index
+     * @param heightPoints the row height in points, or 0 for the default height
+     * @param outlineLevel the outline level
+     * @param hidden       whether the row is hidden
+     * @param collapsed    whether the group above the row is collapsed
+     */
+    void startRow(int row, int heightPoints, int outlineLevel, boolean hidden, boolean collapsed)
+            throws IOException {
+        if (row <= lastRow || row > MAX_ROW) {
+            throw new IllegalArgumentException("Invalid row number (" + row + ") outside allowable range (0.."
+                    + MAX_ROW + ")");
+        }
+        endRow();
+        if (blockRows == ROWS_PER_BLOCK || (blockRows > 0 && row / ROWS_PER_BLOCK != rows[0] / ROWS_PER_BLOCK)) {
+            writeBlock();
+        }
+        int option = ROW_ALWAYS_SET | (outlineLevel & 0x07);
+        if (collapsed) {
+            option |= ROW_COLLAPSED;
+        }
+        if (hidden) {
+            option |= ROW_ZERO_HEIGHT;
+        }
+        if (heightPoints > 0) {
+            option |= ROW_CUSTOM_HEIGHT;
+        }
+        rows[blockRows] = row;
+        heights[blockRows] = heightPoints > 0 ? heightPoints * 20 : ROW_DEFAULT_HEIGHT;
+        options[blockRows] = option;
+        firstCols[blockRows] = -1;
+        lastCols[blockRows] = -1;
+        blockRows++;
+        lastRow = row;
+    }
+
+    private void endRow() {
+        if (blockRows > 0) {
+            cellsEnd[blockRows - 1] = cellBytes.size();
+        }
+    }
+
+    private void startCell(short sid, int length, int col, int xf) {
+        int current = blockRows - 1;
+        if (firstCols[current] < 0) {
+            firstCols[current] = col;
+        }
+        lastCols[current] = col;
+        cells.writeShort(sid);
+        cells.writeShort(length);
+        cells.writeShort(rows[current]);
+        cells.writeShort(col);
+        cells.writeShort(xf);
+    }
+
+    void writeNumber(int col, int xf, double value) {
+        startCell(NumberRecord.sid, 14, col, xf);
+        cells.writeDouble(value);
+    }
+
+    void writeBoolean(int col, int xf, boolean value) {
+        startCell(BoolErrRecord.sid, 8, col, xf);
+        cells.writeByte(value ? 1 : 0);
+        cells.writeByte(0);
+    }
+
+    void writeBlank(int col, int xf) {
+        startCell(BlankRecord.sid, 6, col, xf);
+    }
+
+    void writeString(int col, int xf, String text) {
+        int maxLength = SpreadsheetVersion.EXCEL97.getMaxTextLength();
+        if (text.length() > maxLength) {
+            throw new IllegalArgumentException("The maximum length of cell contents (text) is " + maxLength
+                    + " characters");
+        }
+        int index = sharedStrings.applyAsInt(text);
+        if (index >= 0) {
+            startCell(LabelSSTRecord.sid, 10, col, xf);
+            cells.writeInt(index);
+        } else {
+            int length = text.length();
+            boolean compressed = true;
+            for (int i = 0; i < length && compressed; i++) {
+                compressed = text.charAt(i) < 0x100;
+            }
+            startCell(LabelRecord.sid, 9 + (compressed ? length : 2 * length), col, xf);
+            cells.writeShort(length);
+            cells.writeByte(compressed ? 0 : 1);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (compressed) {
+                    cells.writeByte(c);
+                } else {
+                    cells.writeShort(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a serialized cell record, such as a FORMULA record.
+     */
+    void writeRecord(int col, byte[] record) {
+        int current = blockRows - 1;
+        if (firstCols[current] < 0) {
+            firstCols[current] = col;
+        }
+        lastCols[current] = col;
+        cells.write(record);
+    }
+
+    /**
+     * @return whether the given text is short enough to be written as a LABEL record
+     */
+    static boolean fitsLabel(String text) {
+        return text.length() <= MAX_LABEL_LENGTH;
+    }
+
+    private void writeBlock() throws IOException {
+        endRow();
+        int rowsSize = blockRows * RowRecord.ENCODED_SIZE;
+        for (int i = 0; i < blockRows; i++) {
+            boolean hasCells = firstCols[i] >= 0;
+            out.writeShort(RowRecord.sid);
+            out.writeShort(16);
+            out.writeShort(rows[i]);
+            out.writeShort(hasCells ? firstCols[i] : 0);
+            out.writeShort(hasCells ? lastCols[i] + 1 : 0);
+            out.writeShort(heights[i]);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(options[i]);
+            out.writeShort(ROW_DEFAULT_XF);
+            if (hasCells) {
+                maxCol = Math.max(maxCol, lastCols[i] + 1);
+            }
+        }
+        cellBytes.writeTo(out);
+        // the first offset is counted from the second ROW record, the others from the first cell
+        // of the previous row with cells
+        int cellsSize = cellBytes.size();
+        int offsets = 0;
+        for (int i = 0; i < blockRows; i++) {
+            if (firstCols[i] >= 0) {
+                offsets++;
+            }
+        }
+        out.writeShort(DBCellRecord.sid);
+        out.writeShort(4 + 2 * offsets);
+        out.writeInt(rowsSize + cellsSize);
+        int previous = rowsSize - RowRecord.ENCODED_SIZE;
+        int start = 0;
+        for (int i = 0; i < blockRows; i++) {
+            if (firstCols[i] >= 0) {
+                out.writeShort(previous);
+                previous = cellsEnd[i] - start;
+            }
+            start = cellsEnd[i];
+        }
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        }
+        blockOffsets[blockCount++] = length + rowsSize + cellsSize;
+        length += rowsSize + cellsSize + 8 + 2 * offsets;
+        cellBytes.reset();
+        blockRows = 0;
+    }
+
+    /**
+     * Writes the last block and closes the spool file.
+     */
+    void close() throws IOException {
+        try {
+            if (blockRows > 0) {
+                writeBlock();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the length of the spooled records in bytes
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offsets of the DBCELL records in the spooled records
+     */
+    long[] getBlockOffsets() {
+        return Arrays.copyOf(blockOffsets, blockCount);
+    }
+
+    /**
+     * @return the index of the last row plus one
+     */
+    int getRowCount() {
+        return lastRow + 1;
+    }
+
+    /**
+     * @return the index of the last column with cells plus one
+     */
+    int getColumnCount() {
+        return maxCol;
+    }
+}
@@ -0,0 +1,352 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.VerticalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+
+/**
+ * Workbook-scoped registry of cell styles, keyed by the values of all their attributes. Styles
+ * derived through the registry are only created once for each distinct set of attributes, which
+ * keeps large and multi-sheet workbooks below the style limits of the file formats and avoids
+ * repeated calls to {@link CellStyle#cloneStyleFrom(CellStyle)}.
+ *
+ * Registered styles may still be modified by the caller afterwards. A lookup therefore verifies
+ * that the registered style still has the requested attributes before returning it.
+ */
+public class CellStyleRegistry {
+
+    private final Workbook workbook;
+    private final Map<Attributes, CellStyle> styles = new HashMap<>();
+
+    public CellStyleRegistry(Workbook workbook) {
+        this.workbook = workbook;
+    }
+
+    /**
+     * Returns a style with the attributes of the given style after applying the given changes.
+     * If the changes leave the attributes as they are, the given style itself is returned.
+     *
+     * @param style   the style to derive from
+     * @param changes the changes to the attributes
+     * @return a registered style with the resulting attributes
+     */
+    public CellStyle derive(CellStyle style, Consumer<Attributes> changes) {
+        Attributes original = new Attributes(style);
+        Attributes attributes = new Attributes(style);
+        changes.accept(attributes);
+        if (attributes.equals(original)) {
+            return style;
+        }
+        CellStyle registered = lookup(attributes);
+        if (null == registered) {
+            registered = workbook.createCellStyle();
+            registered.cloneStyleFrom(style);
+            attributes.applyChanges(workbook, registered, original);
+            styles.put(attributes, registered);
+        }
+        return registered;
+    }
+
+    /**
+     * Returns a style with the given alignment and otherwise the attributes of the given style.
+     */
+    public CellStyle withAlignment(CellStyle style, HorizontalAlignment alignment) {
+        return derive(style, attributes -> attributes.setAlignment(alignment));
+    }
+
+    /**
+     * Returns a style with the given data format and otherwise the attributes of the given style.
+     */
+    public CellStyle withDataFormat(CellStyle style, short dataFormat) {
+        return derive(style, attributes -> attributes.setDataFormat(dataFormat));
+    }
+
+    /**
+     * Registers the given style, unless an equal style is already registered.
+     *
+     * @param style the style
+     * @return the registered style equal to the given style
+     */
+    public CellStyle register(CellStyle style) {
+        Attributes attributes = new Attributes(style);
+        CellStyle registered = lookup(attributes);
+        if (null == registered) {
+            styles.put(attributes, style);
+            return style;
+        }
+        return registered;
+    }
+
+    private CellStyle lookup(Attributes attributes) {
+        CellStyle registered = styles.get(attributes);
+        if (null != registered && !attributes.equals(new Attributes(registered))) {
+            // modified since it was registered
+            styles.remove(attributes);
+            return null;
+        }
+        return registered;
+    }
+
+    /**
+     * @return the number of registered styles
+     */
+    public int size() {
+        return styles.size();
+    }
+
+    /**
+     * The attributes of a cell style. Colors are compared by their indexed color and, for the
+     * custom RGB and theme colors of XLSX styles, by the full {@link XSSFColor}.
+     */
+    public static final class Attributes {
+
+        private short dataFormat;
+        private int fontIndex;
+        private boolean hidden;
+        private boolean locked;
+        private boolean quotePrefixed;
+        private HorizontalAlignment alignment;
+        private VerticalAlignment verticalAlignment;
+        private boolean wrapText;
+        private boolean shrinkToFit;
+        private short rotation;
+        private short indention;
+        private BorderStyle borderLeft;
+        private BorderStyle borderRight;
+        private BorderStyle borderTop;
+        private BorderStyle borderBottom;
+        private short leftBorderColor;
+        private short rightBorderColor;
+        private short topBorderColor;
+        private short bottomBorderColor;
+        private FillPatternType fillPattern;
+        private short fillBackgroundColor;
+        private short fillForegroundColor;
+        private XSSFColor leftBorderCustomColor;
+        private XSSFColor rightBorderCustomColor;
+        private XSSFColor topBorderCustomColor;
+        private XSSFColor bottomBorderCustomColor;
+        private XSSFColor fillBackgroundCustomColor;
+        private XSSFColor fillForegroundCustomColor;
+
+        Attributes(CellStyle style) {
+            dataFormat = style.getDataFormat();
+            fontIndex = style.getFontIndexAsInt();
+            hidden = style.getHidden();
+            locked = style.getLocked();
+            quotePrefixed = style.getQuotePrefixed();
+            alignment = style.getAlignment();
+            verticalAlignment = style.getVerticalAlignment();
+            wrapText = style.getWrapText();
+            shrinkToFit = style.getShrinkToFit();
+            rotation = style.getRotation();
+            indention = style.getIndention();
+            borderLeft = style.getBorderLeft();
+            borderRight = style.getBorderRight();
+            borderTop = style.getBorderTop();
+            borderBottom = style.getBorderBottom();
+            leftBorderColor = style.getLeftBorderColor();
+            rightBorderColor = style.getRightBorderColor();
+            topBorderColor = style.getTopBorderColor();
+            bottomBorderColor = style.getBottomBorderColor();
+            fillPattern = style.getFillPattern();
+            fillBackgroundColor = style.getFillBackgroundColor();
+            fillForegroundColor = style.getFillForegroundColor();
+            if (style instanceof XSSFCellStyle) {
+                XSSFCellStyle xssfStyle = (XSSFCellStyle) style;
+                leftBorderCustomColor = customColor(xssfStyle.getLeftBorderXSSFColor());
+                rightBorderCustomColor = customColor(xssfStyle.getRightBorderXSSFColor());
+                topBorderCustomColor = customColor(xssfStyle.getTopBorderXSSFColor());
+                bottomBorderCustomColor = customColor(xssfStyle.getBottomBorderXSSFColor());
+                fillBackgroundCustomColor = customColor(xssfStyle.getFillBackgroundXSSFColor());
+                fillForegroundCustomColor = customColor(xssfStyle.getFillForegroundXSSFColor());
+            }
+        }
+
+        /**
+         * Returns the given color if it is not fully described by its indexed color, else null.
+         */
+        private static XSSFColor customColor(XSSFColor color) {
+            if (null == color || !(color.isRGB() || color.isThemed() || color.hasTint())) {
+                return null;
+            }
+            return color;
+        }
+
+        /**
+         * Applies the attributes that differ from the original attributes to the given style.
+         */
+        private void applyChanges(Workbook workbook, CellStyle style, Attributes original) {
+            if (fontIndex != original.fontIndex) {
+                style.setFont(workbook.getFontAt(fontIndex));
+            }
+            if (dataFormat != original.dataFormat) {
+                style.setDataFormat(dataFormat);
+            }
+            if (hidden != original.hidden) {
+                style.setHidden(hidden);
+            }
+            if (locked != original.locked) {
+                style.setLocked(locked);
+            }
+            if (quotePrefixed != original.quotePrefixed) {
+                style.setQuotePrefixed(quotePrefixed);
+            }
+            if (alignment != original.alignment) {
+                style.setAlignment(alignment);
+            }
+            if (verticalAlignment != original.verticalAlignment) {
+                style.setVerticalAlignment(verticalAlignment);
+            }
+            if (wrapText != original.wrapText) {
+                style.setWrapText(wrapText);
+            }
+            if (shrinkToFit != original.shrinkToFit) {
+                style.setShrinkToFit(shrinkToFit);
+            }
+            if (rotation != original.rotation) {
+                style.setRotation(rotation);
+            }
+            if (indention != original.indention) {
+                style.setIndention(indention);
+            }
+            if (borderLeft != original.borderLeft) {
+                style.setBorderLeft(borderLeft);
+            }
+            if (borderRight != original.borderRight) {
+                style.setBorderRight(borderRight);
+            }
+            if (borderTop != original.borderTop) {
+                style.setBorderTop(borderTop);
+            }
+            if (borderBottom != original.borderBottom) {
+                style.setBorderBottom(borderBottom);
+            }
+            if (leftBorderColor != original.leftBorderColor
+                    || !Objects.equals(leftBorderCustomColor, original.leftBorderCustomColor)) {
+                style.setLeftBorderColor(leftBorderColor);
+            }
+            if (rightBorderColor != original.rightBorderColor
+                    || !Objects.equals(rightBorderCustomColor, original.rightBorderCustomColor)) {
+                style.setRightBorderColor(rightBorderColor);
+            }
+            if (topBorderColor != original.topBorderColor
+                    || !Objects.equals(topBorderCustomColor, original.topBorderCustomColor)) {
+                style.setTopBorderColor(topBorderColor);
+            }
+            if (bottomBorderColor != original.bottomBorderColor
+                    || !Objects.equals(bottomBorderCustomColor, original.bottomBorderCustomColor)) {
+                style.setBottomBorderColor(bottomBorderColor);
+            }
+            if (fillPattern != original.fillPattern) {
+                style.setFillPattern(fillPattern);
+            }
+            if (fillBackgroundColor != original.fillBackgroundColor
+                    || !Objects.equals(fillBackgroundCustomColor, original.fillBackgroundCustomColor)) {
+                style.setFillBackgroundColor(fillBackgroundColor);
+            }
+            if (fillForegroundColor != original.fillForegroundColor
+                    || !Objects.equals(fillForegroundCustomColor, original.fillForegroundCustomColor)) {
+                style.setFillForegroundColor(fillForegroundColor);
+            }
+        }
+
+        public Attributes setDataFormat(short dataFormat) {
+            this.dataFormat = dataFormat;
+            return this;
+        }
+
+        public Attributes setFontIndex(int fontIndex) {
+            this.fontIndex = fontIndex;
+            return this;
+        }
+
+        public Attributes setAlignment(HorizontalAlignment alignment) {
+            this.alignment = alignment;
+            return this;
+        }
+
+        public Attributes setVerticalAlignment(VerticalAlignment verticalAlignment) {
+            this.verticalAlignment = verticalAlignment;
+            return this;
+        }
+
+        public Attributes setWrapText(boolean wrapText) {
+            this.wrapText = wrapText;
+            return this;
+        }
+
+        public Attributes setBorders(BorderStyle border, short borderColor) {
+            this.borderLeft = border;
+            this.borderRight = border;
+            this.borderTop = border;
+            this.borderBottom = border;
+            this.leftBorderColor = borderColor;
+            this.rightBorderColor = borderColor;
+            this.topBorderColor = borderColor;
+            this.bottomBorderColor = borderColor;
+            this.leftBorderCustomColor = null;
+            this.rightBorderCustomColor = null;
+            this.topBorderCustomColor = null;
+            this.bottomBorderCustomColor = null;
+            return this;
+        }
+
+        public Attributes setFill(FillPatternType fillPattern, short fillForegroundColor) {
+            this.fillPattern = fillPattern;
+            this.fillForegroundColor = fillForegroundColor;
+            this.fillForegroundCustomColor = null;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Attributes)) {
+                return false;
+            }
+            Attributes other = (Attributes) o;
+            return dataFormat == other.dataFormat && fontIndex == other.fontIndex && hidden == other.hidden
+                    && locked == other.locked && quotePrefixed == other.quotePrefixed
+                    && alignment == other.alignment && verticalAlignment == other.verticalAlignment
+                    && wrapText == other.wrapText && shrinkToFit == other.shrinkToFit
+                    && rotation == other.rotation && indention == other.indention
+                    && borderLeft == other.borderLeft && borderRight == other.borderRight
+                    && borderTop == other.borderTop && borderBottom == other.borderBottom
+                    && leftBorderColor == other.leftBorderColor && rightBorderColor == other.rightBorderColor
+                    && topBorderColor == other.topBorderColor && bottomBorderColor == other.bottomBorderColor
+                    && fillPattern == other.fillPattern && fillBackgroundColor == other.fillBackgroundColor
+                    && fillForegroundColor == other.fillForegroundColor
+                    && Objects.equals(leftBorderCustomColor, other.leftBorderCustomColor)
+                    && Objects.equals(rightBorderCustomColor, other.rightBorderCustomColor)
+                    && Objects.equals(topBorderCustomColor, other.topBorderCustomColor)
+                    && Objects.equals(bottomBorderCustomColor, other.bottomBorderCustomColor)
+                    && Objects.equals(fillBackgroundCustomColor, other.fillBackgroundCustomColor)
+                    && Objects.equals(fillForegroundCustomColor, other.fillForegroundCustomColor);
+        }
+
+        /**
+         * The custom colors are left out of the hash code; {@link XSSFColor#hashCode()} hashes the
+         * underlying XML, which may differ between equal colors.
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(dataFormat, fontIndex, hidden, locked, quotePrefixed, alignment, verticalAlignment,
+                    wrapText, shrinkToFit, rotation, indention, borderLeft, borderRight, borderTop, borderBottom,
+                    leftBorderColor, rightBorderColor, topBorderColor, bottomBorderColor, fillPattern,
+                    fillBackgroundColor, fillForegroundColor);
+        }
+    }
+}
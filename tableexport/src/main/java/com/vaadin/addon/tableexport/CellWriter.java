@@ -0,0 +1,15 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.Serializable;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Writes a non-null value into a cell. Cell writers are resolved once per column from the column
+ * type, see {@link CellWriters}.
+ */
+@FunctionalInterface
+public interface CellWriter extends Serializable {
+
+    void write(Cell cell, Object value);
+}
@@ -0,0 +1,256 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+
+
+/**
+ * Registry of the {@link CellWriter}s by value type. Numbers are written as doubles and
+ * booleans as boolean cells, without converting them to and from strings, and texts are written
+ * as plain strings. {@link Date} and the java.time date types are written as Excel date serials,
+ * see {@link ExcelDateSerials}. Writers registered for a type are also used for its subtypes.
+ */
+public class CellWriters implements Serializable {
+
+    private static final long serialVersionUID = 4217389573416012736L;
+
+    private static Logger LOGGER = Logger.getLogger(CellWriters.class.getName());
+
+    /**
+     * Writes the string representation of the value.
+     */
+    public static final CellWriter TEXT = (cell, value) -> cell.setCellValue(value.toString());
+
+    /**
+     * Writes numbers as doubles, the cell format determines how they appear. Values that are not
+     * numbers are parsed, or written as text if they cannot be parsed.
+     */
+    public static final CellWriter NUMBER = (cell, value) -> {
+        if (value instanceof Number) {
+            cell.setCellValue(((Number) value).doubleValue());
+        } else {
+            try {
+                cell.setCellValue(Double.parseDouble(value.toString()));
+            } catch (NumberFormatException nfe) {
+                LOGGER.warning("NumberFormatException parsing a numeric value: " + nfe);
+                cell.setCellValue(value.toString());
+            }
+        }
+    };
+
+    public static final CellWriter BOOLEAN = (cell, value) -> {
+        if (value instanceof Boolean) {
+            cell.setCellValue((Boolean) value);
+        } else {
+            TEXT.write(cell, value);
+        }
+    };
+
+    /**
+     * How the writer of a column type writes the values, so that exports writing their cells
+     * without POI cells write them like the cell writers do.
+     */
+    public enum ValueKind {
+        /** Numbers as doubles, other values parsed as numbers or else written as text. */
+        NUMBER,
+        /** Booleans as boolean cells, other values as text. */
+        BOOLEAN,
+        /** Dates of the column type as Excel date serials, other values as text. */
+        DATE,
+        /** The string representation of the value. */
+        TEXT,
+        /** A registered writer, which has to be given a cell to write into. */
+        CUSTOM
+    }
+
+    private final Map<Class<?>, CellWriter> writers = new HashMap<>();
+
+    /* the writers registered by the constructor, by identity */
+    private final Map<CellWriter, ValueKind> defaultKinds = new IdentityHashMap<>();
+
+    private ExcelDateSerials dateSerials = new ExcelDateSerials(false, ZoneId.systemDefault());
+
+    public CellWriters() {
+        for (Class<?> type : new Class<?>[] { Number.class, Integer.class, int.class, Long.class, long.class,
+                Short.class, short.class, Byte.class, byte.class, Double.class, double.class, Float.class,
+                float.class, BigDecimal.class, BigInteger.class }) {
+            registerDefault(type, NUMBER, ValueKind.NUMBER);
+        }
+        registerDefault(Boolean.class, BOOLEAN, ValueKind.BOOLEAN);
+        registerDefault(boolean.class, BOOLEAN, ValueKind.BOOLEAN);
+        registerDefault(Date.class, dateWriter(Date.class, date -> dateSerials.toSerial(date.getTime())),
+                ValueKind.DATE);
+        registerDefault(LocalDate.class, dateWriter(LocalDate.class, date -> dateSerials.toSerial(date)),
+                ValueKind.DATE);
+        registerDefault(LocalDateTime.class, dateWriter(LocalDateTime.class, date -> dateSerials.toSerial(date)),
+                ValueKind.DATE);
+        registerDefault(Instant.class, dateWriter(Instant.class, date -> dateSerials.toSerial(date)),
+                ValueKind.DATE);
+        // zoned values are written with their own local date and time, as Excel dates carry no zone
+        registerDefault(ZonedDateTime.class,
+                dateWriter(ZonedDateTime.class, date -> dateSerials.toSerial(date.toLocalDateTime())),
+                ValueKind.DATE);
+        registerDefault(OffsetDateTime.class,
+                dateWriter(OffsetDateTime.class, date -> dateSerials.toSerial(date.toLocalDateTime())),
+                ValueKind.DATE);
+        registerDefault(CharSequence.class, TEXT, ValueKind.TEXT);
+        registerDefault(Enum.class, TEXT, ValueKind.TEXT);
+        registerDefault(Object.class, TEXT, ValueKind.TEXT);
+    }
+
+    private void registerDefault(Class<?> type, CellWriter writer, ValueKind kind) {
+        register(type, writer);
+        defaultKinds.put(writer, kind);
+    }
+
+    /**
+     * Returns a writer writing values of the given type as Excel date serials. Values of other
+     * types and dates Excel cannot represent are written as text.
+     */
+    private <D> CellWriter dateWriter(Class<D> type, ToDoubleFunction<D> toSerial) {
+        return (cell, value) -> {
+            if (type.isInstance(value)) {
+                double serial = toSerial.applyAsDouble(type.cast(value));
+                if (serial != ExcelDateSerials.INVALID) {
+                    cell.setCellValue(serial);
+                    return;
+                }
+            }
+            TEXT.write(cell, value);
+        };
+    }
+
+    /**
+     * Sets the converter used by the date writers. A new converter should be set for each export,
+     * matching the workbook's date system.
+     *
+     * @param dateSerials the date converter
+     */
+    public void setDateSerials(ExcelDateSerials dateSerials) {
+        this.dateSerials = dateSerials;
+    }
+
+    /**
+     * Converts a {@link Date} or java.time date value to an Excel date serial, like the date
+     * writers do.
+     *
+     * @param value the value
+     * @return the date serial, or {@link ExcelDateSerials#INVALID} if the value is no date or
+     *         cannot be represented
+     */
+    public double toDateSerial(Object value) {
+        if (value instanceof Date) {
+            return dateSerials.toSerial(((Date) value).getTime());
+        } else if (value instanceof LocalDate) {
+            return dateSerials.toSerial((LocalDate) value);
+        } else if (value instanceof LocalDateTime) {
+            return dateSerials.toSerial((LocalDateTime) value);
+        } else if (value instanceof Instant) {
+            return dateSerials.toSerial((Instant) value);
+        } else if (value instanceof ZonedDateTime) {
+            return dateSerials.toSerial(((ZonedDateTime) value).toLocalDateTime());
+        } else if (value instanceof OffsetDateTime) {
+            return dateSerials.toSerial(((OffsetDateTime) value).toLocalDateTime());
+        }
+        return ExcelDateSerials.INVALID;
+    }
+
+    /**
+     * Converts a value of a column of the given type to an Excel date serial, like the date writer
+     * of the column does.
+     *
+     * @param type  the column type
+     * @param value the value
+     * @return the date serial, or {@link ExcelDateSerials#INVALID} if the value is not of the
+     *         column type or cannot be represented
+     */
+    public double toDateSerial(Class<?> type, Object value) {
+        return type.isInstance(value) ? toDateSerial(value) : ExcelDateSerials.INVALID;
+    }
+
+    /**
+     * Utility method to determine whether the given type is written as an Excel date.
+     *
+     * @param type the type
+     * @return true, if is a date type
+     */
+    public static boolean isDate(Class<?> type) {
+        return Date.class.isAssignableFrom(type) || LocalDate.class.equals(type) || LocalDateTime.class.equals(type)
+                || Instant.class.equals(type) || ZonedDateTime.class.equals(type) || OffsetDateTime.class.equals(type);
+    }
+
+    /**
+     * Registers the writer for values of the given type and its subtypes.
+     *
+     * @param type   the value type
+     * @param writer the writer
+     */
+    public void register(Class<?> type, CellWriter writer) {
+        writers.put(type, writer);
+    }
+
+    /**
+     * Returns the writer for values of the given type: the writer registered for the type itself,
+     * or else for its closest registered superclass or interface.
+     *
+     * @param type the value type
+     * @return the writer
+     */
+    public CellWriter getWriter(Class<?> type) {
+        if (null == type) {
+            return TEXT;
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            CellWriter writer = writers.get(c);
+            if (null == writer) {
+                writer = getInterfaceWriter(c);
+            }
+            if (null != writer) {
+                return writer;
+            }
+        }
+        return TEXT;
+    }
+
+    /**
+     * Returns how the writer for values of the given type writes them, {@link ValueKind#CUSTOM}
+     * if a writer has been registered for the type or one of its supertypes.
+     *
+     * @param type the value type
+     * @return the value kind
+     */
+    public ValueKind getValueKind(Class<?> type) {
+        CellWriter writer = getWriter(type);
+        if (writer == TEXT) {
+            return ValueKind.TEXT;
+        }
+        ValueKind kind = defaultKinds.get(writer);
+        return null == kind ? ValueKind.CUSTOM : kind;
+    }
+
+    private CellWriter getInterfaceWriter(Class<?> type) {
+        for (Class<?> i : type.getInterfaces()) {
+            CellWriter writer = writers.get(i);
+            if (null == writer) {
+                writer = getInterfaceWriter(i);
+            }
+            if (null != writer) {
+                return writer;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,128 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+
+/**
+ * The exported columns with everything that is needed to write their cells, resolved once per
+ * export. Writing a row is then a walk over arrays indexed by column, instead of looking up the
+ * column id, value provider, type, alignment and style for every cell. The cell styles already
+ * carry the column alignment, so no style has to be derived while the cells are written.
+ */
+public class ColumnPlan {
+
+    /**
+     * Resolves the cell style of a column for a given alignment.
+     */
+    @FunctionalInterface
+    public interface StyleResolver {
+
+        CellStyle resolve(String columnId, int col, HorizontalAlignment alignment);
+    }
+
+    private final String[] columnIds;
+    private final Class<?>[] types;
+    private final HorizontalAlignment[] alignments;
+    private final Function<Object, ?>[] valueProviders;
+    private final CellWriter[] cellWriters;
+    private final CellWriters.ValueKind[] valueKinds;
+    private final CellStyle[] headerStyles;
+    private final CellStyle[] dataStyles;
+    private final CellStyle[] totalsStyles;
+
+    /**
+     * Resolves the plan for the given columns.
+     *
+     * @param tableHolder    the table holder providing the column properties
+     * @param columnIds      the ids of the exported columns, in export order
+     * @param cellWriters    the cell writers to resolve from the column types
+     * @param headerResolver resolves the header cell style of a column
+     * @param dataResolver   resolves the data cell style of a column
+     * @param totalsResolver resolves the totals cell style of a column
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ColumnPlan(TableHolder<T> tableHolder, List<String> columnIds, CellWriters cellWriters,
+                          StyleResolver headerResolver, StyleResolver dataResolver, StyleResolver totalsResolver) {
+        int size = columnIds.size();
+        this.columnIds = columnIds.toArray(new String[size]);
+        this.types = new Class<?>[size];
+        this.alignments = new HorizontalAlignment[size];
+        this.valueProviders = (Function<Object, ?>[]) new Function<?, ?>[size];
+        this.cellWriters = new CellWriter[size];
+        this.valueKinds = new CellWriters.ValueKind[size];
+        this.headerStyles = new CellStyle[size];
+        this.dataStyles = new CellStyle[size];
+        this.totalsStyles = new CellStyle[size];
+        for (int col = 0; col < size; col++) {
+            String columnId = this.columnIds[col];
+            types[col] = tableHolder.getColumnType(columnId);
+            alignments[col] = HorizontalAlignment.forInt(tableHolder.getCellAlignment(columnId));
+            valueProviders[col] = (Function<Object, ?>) tableHolder.getColumnValueProvider(columnId);
+            this.cellWriters[col] = cellWriters.getWriter(types[col]);
+            valueKinds[col] = cellWriters.getValueKind(types[col]);
+            headerStyles[col] = headerResolver.resolve(columnId, col, alignments[col]);
+            dataStyles[col] = dataResolver.resolve(columnId, col, alignments[col]);
+            totalsStyles[col] = totalsResolver.resolve(columnId, col, alignments[col]);
+        }
+    }
+
+    /**
+     * @return the number of exported columns
+     */
+    public int size() {
+        return columnIds.length;
+    }
+
+    public String getColumnId(int col) {
+        return columnIds[col];
+    }
+
+    public Class<?> getType(int col) {
+        return types[col];
+    }
+
+    public HorizontalAlignment getAlignment(int col) {
+        return alignments[col];
+    }
+
+    public CellWriter getCellWriter(int col) {
+        return cellWriters[col];
+    }
+
+    /**
+     * Returns how the cell writer of the column writes the values, for exports that write their
+     * cells without POI cells.
+     *
+     * @param col the column index
+     * @return the value kind
+     */
+    public CellWriters.ValueKind getValueKind(int col) {
+        return valueKinds[col];
+    }
+
+    public CellStyle getHeaderStyle(int col) {
+        return headerStyles[col];
+    }
+
+    public CellStyle getDataStyle(int col) {
+        return dataStyles[col];
+    }
+
+    public CellStyle getTotalsStyle(int col) {
+        return totalsStyles[col];
+    }
+
+    /**
+     * Returns the value of the given item in the given column.
+     *
+     * @param col  the column index
+     * @param item the item
+     * @return the value
+     */
+    public Object getValue(int col, Object item) {
+        return valueProviders[col].apply(item);
+    }
+}
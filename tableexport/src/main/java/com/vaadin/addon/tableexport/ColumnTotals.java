@@ -0,0 +1,62 @@
+package com.vaadin.addon.tableexport;
+
+/**
+ * Sums the values of the numeric columns while the data rows are written, so the totals row can
+ * be written with its results without evaluating formulas. Values are converted like
+ * {@link CellWriters#NUMBER} does; values that are not numbers and cannot be parsed are skipped,
+ * as SUM skips text cells.
+ */
+public class ColumnTotals {
+
+    private final boolean[] numeric;
+    private final double[] sums;
+
+    /**
+     * @param plan the exported columns, the numeric ones are summed
+     */
+    public ColumnTotals(ColumnPlan plan) {
+        int size = plan.size();
+        this.numeric = new boolean[size];
+        this.sums = new double[size];
+        for (int col = 0; col < size; col++) {
+            numeric[col] = ExcelExport.isNumeric(plan.getType(col));
+        }
+    }
+
+    /**
+     * @param col the column index
+     * @return whether the column is summed
+     */
+    public boolean isNumeric(int col) {
+        return numeric[col];
+    }
+
+    /**
+     * Adds the value to the sum of the column, if the column is numeric.
+     *
+     * @param col   the column index
+     * @param value the value, may be null
+     */
+    public void add(int col, Object value) {
+        if (!numeric[col] || null == value) {
+            return;
+        }
+        if (value instanceof Number) {
+            sums[col] += ((Number) value).doubleValue();
+        } else {
+            try {
+                sums[col] += Double.parseDouble(value.toString());
+            } catch (NumberFormatException nfe) {
+                // not counted, like a text cell in a SUM range
+            }
+        }
+    }
+
+    /**
+     * @param col the column index
+     * @return the sum of the column
+     */
+    public double getSum(int col) {
+        return sums[col];
+    }
+}
@@ -0,0 +1,48 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.Serializable;
+
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Determines the column widths of an exported sheet. The strategy is started before the rows of a
+ * sheet are written, can measure the header and data values while they are written, and applies
+ * the widths once the sheet is complete.
+ */
+public interface ColumnWidthStrategy extends Serializable {
+
+    /**
+     * Starts a new sheet.
+     *
+     * @param sheet the sheet
+     * @param plan  the exported columns
+     */
+    void start(Sheet sheet, ColumnPlan plan);
+
+    /**
+     * @return whether the values of the next data row should be measured
+     */
+    boolean isMeasuring();
+
+    /**
+     * Measures a value written to the given column. Header values are always measured, data values
+     * only while {@link #isMeasuring()} returns true.
+     *
+     * @param col   the column index
+     * @param value the value, may be null
+     */
+    void measure(int col, Object value);
+
+    /**
+     * Called after all values of a measured data row were passed to {@link #measure(int, Object)}.
+     */
+    void endRow();
+
+    /**
+     * Applies the column widths to the completed sheet.
+     *
+     * @param sheet the sheet
+     * @param plan  the exported columns
+     */
+    void apply(Sheet sheet, ColumnPlan plan);
+}
@@ -1,21 +1,51 @@
 package com.vaadin.addon.tableexport;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
 
 import com.vaadin.ui.Grid;
 
+/**
+ * Exports the table as CSV. The rows are streamed from the table holder straight into a buffered
+ * file, without building a workbook. Each column is written the way the cell writer of its type
+ * writes the Excel cells, formatted with the data format of the column: numeric and date columns
+ * are written formatted and only quoted if they contain a separator, quote or line break, all
+ * other values are quoted texts. Columns with a registered cell writer are written into a scratch
+ * cell and read back. Quotes in fields are doubled.
+ */
 public class CsvExport extends ExcelExport {
 	private static final long serialVersionUID = 935966816321924835L;
 	private static Logger LOGGER = Logger.getLogger(CsvExport.class.getName());
 
+	/**
+	 * The CSV file the tables are written to, from the first convertTable() until writeToTempFile().
+	 */
+	private transient File csvFile;
+	private transient Writer csvWriter;
+	private transient IOException csvFailure;
+
+	private transient DataFormatter dataFormatter;
+	private transient StringBuilder line;
+	private transient boolean[] numericColumns;
+	private transient CellWriters.ValueKind[] valueKinds;
+	private transient ScratchCell scratchCell;
+	private transient short[] dataFormats, totalsFormats;
+	private transient String[] dataFormatStrings, totalsFormatStrings;
+
 	public CsvExport(Grid<?> grid) {
 		super(grid);
 	}
@@ -57,27 +87,308 @@ public class CsvExport extends ExcelExport {
 		super(tableHolder, sheetName, reportTitle, exportFileName, hasTotalsRow);
 	}
 
+	/**
+	 * Appends the table to the CSV file. Each further table, added with setNextTableHolder(),
+	 * is appended below the previous one.
+	 */
+	@Override
+	public void convertTable() {
+		if (null != csvFailure) {
+			return;
+		}
+		try {
+			if (null == csvWriter) {
+				csvFile = getTempFileManager().createTempFile(".csv");
+				csvWriter = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(csvFile), Charset.defaultCharset()), 1 << 16);
+			}
+			writeTable();
+		} catch (IOException e) {
+			csvFailure = e;
+		} catch (UncheckedIOException e) {
+			csvFailure = e.getCause();
+		}
+	}
+
+	private void writeTable() {
+		boolean hasTitle = (null != reportTitle) && !"".equals(reportTitle);
+		int startRow = hasTitle ? 1 : 0;
+		columnPlan = compileColumnPlan(startRow);
+		columnTotals = displayTotals ? new ColumnTotals(columnPlan) : null;
+		compileFormats(columnPlan);
+		line = new StringBuilder(256);
+
+		if (hasTitle) {
+			if (rowHeaders) {
+				line.append(',');
+			}
+			appendQuoted(reportTitle);
+			endLine();
+		}
+
+		for (int col = 0; col < columnPlan.size(); col++) {
+			if (col > 0) {
+				line.append(',');
+			}
+			appendQuoted(getTableHolder().getColumnHeader(columnPlan.getColumnId(col)).toString());
+		}
+		endLine();
+
+		if (isHierarchical()) {
+			try (Stream<?> roots = prefetch(streamRootItems())) {
+				Iterator<?> iterator = roots.iterator();
+				while (iterator.hasNext()) {
+					Object root = iterator.next();
+					writeRow(root, true);
+					visitDescendants(root, (child, depth) -> writeRow(child, false));
+				}
+			}
+		} else {
+			try (Stream<?> items = prefetch(getTableHolder().streamItems())) {
+				Iterator<?> iterator = items.iterator();
+				while (iterator.hasNext()) {
+					writeRow(iterator.next(), true);
+				}
+			}
+		}
+
+		if (displayTotals) {
+			writeTotalsRow();
+		}
+	}
+
+	private void compileFormats(ColumnPlan plan) {
+		int size = plan.size();
+		dataFormatter = new DataFormatter();
+		numericColumns = new boolean[size];
+		valueKinds = new CellWriters.ValueKind[size];
+		dataFormats = new short[size];
+		dataFormatStrings = new String[size];
+		totalsFormats = new short[size];
+		totalsFormatStrings = new String[size];
+		for (int col = 0; col < size; col++) {
+			numericColumns[col] = isNumeric(plan.getType(col));
+			valueKinds[col] = getValueKind(plan, col);
+			if (valueKinds[col] == CellWriters.ValueKind.CUSTOM && null == scratchCell) {
+				scratchCell = new ScratchCell();
+			}
+			CellStyle dataStyle = plan.getDataStyle(col);
+			dataFormats[col] = dataStyle.getDataFormat();
+			dataFormatStrings[col] = dataStyle.getDataFormatString();
+			CellStyle totalsStyle = plan.getTotalsStyle(col);
+			totalsFormats[col] = totalsStyle.getDataFormat();
+			totalsFormatStrings[col] = totalsStyle.getDataFormatString();
+		}
+	}
+
+	/**
+	 * Writes the line of an item.
+	 *
+	 * @param item     the item
+	 * @param totalled whether the values of the item are added to the totals
+	 */
+	private void writeRow(Object item, boolean totalled) {
+		ColumnPlan plan = columnPlan;
+		for (int col = 0; col < plan.size(); col++) {
+			if (col > 0) {
+				line.append(',');
+			}
+			Object value = plan.getValue(col, item);
+			if (totalled && null != columnTotals) {
+				columnTotals.add(col, value);
+			}
+			appendValue(col, value);
+		}
+		endLine();
+		rowExported(totalled);
+	}
+
+	private void appendValue(int col, Object value) {
+		CellWriters.ValueKind kind = valueKinds[col];
+		if (kind == CellWriters.ValueKind.CUSTOM) {
+			appendCell(col, value);
+			return;
+		}
+		if (null == value) {
+			return;
+		}
+		switch (kind) {
+		case NUMBER:
+			if (value instanceof Number) {
+				appendNumber(((Number) value).doubleValue(), dataFormats[col], dataFormatStrings[col]);
+			} else {
+				try {
+					appendNumber(Double.parseDouble(value.toString()), dataFormats[col], dataFormatStrings[col]);
+				} catch (NumberFormatException nfe) {
+					appendQuoted(value.toString());
+				}
+			}
+			break;
+		case DATE:
+			double serial = cellWriters.toDateSerial(columnPlan.getType(col), value);
+			if (serial != ExcelDateSerials.INVALID) {
+				appendNumber(serial, dataFormats[col], dataFormatStrings[col]);
+			} else {
+				appendQuoted(value.toString());
+			}
+			break;
+		default:
+			// texts and booleans are quoted like the texts of the CSV converted from a workbook
+			appendQuoted(value.toString());
+		}
+	}
+
+	/**
+	 * Writes the value into the scratch cell like into a data cell and appends what was written.
+	 */
+	private void appendCell(int col, Object value) {
+		Cell cell = scratchCell.blank();
+		writeCellValue(cell, columnPlan, col, value);
+		switch (cell.getCellType()) {
+		case NUMERIC:
+			appendNumber(cell.getNumericCellValue(), dataFormats[col], dataFormatStrings[col]);
+			break;
+		case STRING:
+			appendQuoted(cell.getStringCellValue());
+			break;
+		case BOOLEAN:
+			appendQuoted(String.valueOf(cell.getBooleanCellValue()));
+			break;
+		default:
+			// blank
+		}
+	}
+
+	private void writeTotalsRow() {
+		for (int col = 0; col < columnPlan.size(); col++) {
+			if (col > 0) {
+				line.append(',');
+			}
+			if (numericColumns[col]) {
+				appendNumber(columnTotals.getSum(col), totalsFormats[col], totalsFormatStrings[col]);
+			} else if (0 == col) {
+				appendQuoted(getTotalHeader());
+			}
+		}
+		endLine();
+	}
+
+	private void appendNumber(double value, short format, String formatString) {
+		String text = dataFormatter.formatRawCellContents(value, format, formatString);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				appendQuoted(text);
+				return;
+			}
+		}
+		line.append(text);
+	}
+
+	private void appendQuoted(String text) {
+		line.append('"');
+		int quote = text.indexOf('"');
+		if (quote < 0) {
+			line.append(text);
+		} else {
+			int start = 0;
+			while (quote >= 0) {
+				line.append(text, start, quote + 1).append('"');
+				start = quote + 1;
+				quote = text.indexOf('"', start);
+			}
+			line.append(text, start, text.length());
+		}
+		line.append('"');
+	}
+
+	private void endLine() {
+		line.append(System.lineSeparator());
+		try {
+			csvWriter.append(line);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		line.setLength(0);
+	}
+
+	/**
+	 * Writes the CSV lines of the table straight to the stream while the rows are read.
+	 */
+	@Override
+	public void exportTo(OutputStream out) throws IOException {
+		if (null == mimeType) {
+			setMimeType(CSV_MIME_TYPE);
+		}
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), 1 << 16);
+		csvWriter = writer;
+		try {
+			convertTable();
+			if (null != csvFailure) {
+				throw csvFailure;
+			}
+			writer.flush();
+		} finally {
+			csvWriter = null;
+			csvFailure = null;
+		}
+	}
+
+	/**
+	 * Copies the CSV file written by convertTable() to the stream.
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		writeTempFileTo(out);
+	}
+
+	@Override
 	public File writeToTempFile() {
 		if (null == mimeType) {
 			setMimeType(CSV_MIME_TYPE);
 		}
-		File tempXlsFile, tempCsvFile;
+		File tempCsvFile = csvFile;
+		Writer writer = csvWriter;
+		IOException failure = csvFailure;
+		csvFile = null;
+		csvWriter = null;
+		csvFailure = null;
 		try {
-			tempXlsFile = File.createTempFile("tmp", ".xls");
-			FileOutputStream fileOut = new FileOutputStream(tempXlsFile);
-			workbook.write(fileOut);
-			FileInputStream fis = new FileInputStream(tempXlsFile);
-			POIFSFileSystem fs = new POIFSFileSystem(fis);
-			tempCsvFile = File.createTempFile("tmp", ".csv");
-			PrintStream p = new PrintStream(new BufferedOutputStream(new FileOutputStream(tempCsvFile, true)));
-
-			XLS2CSVmra xls2csv = new XLS2CSVmra(fs, p, -1);
-			xls2csv.process();
-			p.close();
+			if (null == writer) {
+				tempCsvFile = getTempFileManager().createTempFile(".csv");
+			} else {
+				writer.close();
+			}
+			if (null != failure) {
+				throw failure;
+			}
 			return tempCsvFile;
 		} catch (IOException e) {
 			LOGGER.warning("Converting to CSV failed with IOException " + e);
+			if (null != tempCsvFile) {
+				getTempFileManager().release(tempCsvFile);
+			}
 			return null;
 		}
 	}
+
+	/**
+	 * Closes the CSV file written so far and deletes it.
+	 */
+	@Override
+	public void discard() {
+		if (null != csvWriter && null != csvFile) {
+			try {
+				csvWriter.close();
+			} catch (IOException e) {
+				// discarded anyway
+			}
+		}
+		if (null != csvFile) {
+			getTempFileManager().release(csvFile);
+		}
+		csvFile = null;
+		csvWriter = null;
+		csvFailure = null;
+	}
 }
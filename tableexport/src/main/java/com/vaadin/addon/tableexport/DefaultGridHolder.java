@@ -4,10 +4,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.poi.ss.usermodel.HorizontalAlignment;
 
 import com.vaadin.data.HasHierarchicalDataProvider;
+import com.vaadin.data.provider.HierarchicalDataProvider;
 import com.vaadin.data.provider.HierarchicalQuery;
 import com.vaadin.data.provider.Query;
 import com.vaadin.ui.Grid;
@@ -20,6 +23,8 @@ public class DefaultGridHolder<T> implements TableHolder<T> {
 
 	private boolean hierarchical = false;
 
+	private int pageSize = 0;
+
 	protected Grid<T> heldGrid;
 	private List<String> columnIds;
 
@@ -76,6 +81,16 @@ public class DefaultGridHolder<T> implements TableHolder<T> {
 		}
 	}
 
+	@Override
+	public List<String> getSortOrder() {
+		if (null == heldGrid) {
+			return Collections.emptyList();
+		}
+		return heldGrid.getSortOrder().stream()
+				.map(order -> order.getSorted().getId() + " " + order.getDirection())
+				.collect(Collectors.toList());
+	}
+
 	protected Column<T, ?> getColumn(String columnId) {
 		return heldGrid.getColumn(columnId);
 	}
@@ -103,23 +118,110 @@ public class DefaultGridHolder<T> implements TableHolder<T> {
 		return getColumn(columnId).getValueProvider().apply(item);
 	}
 
+
 	@Override
 	public Collection<T> getChildren(T rootItem) {
 		if (isHierarchical()) {
-			return ((HasHierarchicalDataProvider<T>) heldGrid).getTreeData().getChildren(rootItem);
+			return getChildren(rootItem, 0, Integer.MAX_VALUE);
 		} else {
 			return Collections.emptyList();
 		}
 	}
 
+	/**
+	 * Fetches a page of the children of the given item from the grid's hierarchical data provider,
+	 * in the grid's sort order.
+	 *
+	 * @param parent the parent item, or null for the root items
+	 * @param offset the index of the first child
+	 * @param limit  the maximum number of children
+	 * @return the children
+	 */
+	public Collection<T> getChildren(T parent, int offset, int limit) {
+		return fetchChildren(parent, offset, limit).collect(Collectors.toList());
+	}
+
+	@SuppressWarnings("unchecked")
+	private Stream<T> fetchChildren(T parent, int offset, int limit) {
+		HierarchicalDataProvider<T, ?> dataProvider = (HierarchicalDataProvider<T, ?>) heldGrid.getDataProvider();
+		return dataProvider.fetchChildren(new HierarchicalQuery<>(offset, limit,
+				heldGrid.getDataCommunicator().getBackEndSorting(), heldGrid.getDataCommunicator().getInMemorySorting(),
+				null, parent));
+	}
+
+	/**
+	 * Streams the children of the given item, one page at a time if a page size is set. Leaves are
+	 * recognized with {@link HierarchicalDataProvider#hasChildren(Object)} and not queried.
+	 * Vaadin's data providers only fetch the children of one parent per query, so the children of
+	 * different parents are not fetched together.
+	 */
+	private Stream<T> streamChildrenOf(T parent) {
+		int pageSize = getPageSize();
+		if (pageSize <= 0) {
+			return fetchChildren(parent, 0, Integer.MAX_VALUE);
+		}
+		return StreamSupport.stream(
+				new PagedSpliterator<>((offset, limit) -> getChildren(parent, offset, limit), pageSize), false);
+	}
+
+	@Override
+	public Stream<T> streamChildren(T rootItem) {
+		if (!isHierarchical()
+				|| !((HierarchicalDataProvider<T, ?>) heldGrid.getDataProvider()).hasChildren(rootItem)) {
+			return Stream.empty();
+		}
+		return streamChildrenOf(rootItem);
+	}
+
 	@Override
 	public Collection<T> getItems() {
+		return getItems(0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public Collection<T> getItems(int offset, int limit) {
 		return heldGrid.getDataProvider()
-				.fetch(new Query<>(0, Integer.MAX_VALUE, heldGrid.getDataCommunicator().getBackEndSorting(),
+				.fetch(new Query<>(offset, limit, heldGrid.getDataCommunicator().getBackEndSorting(),
 						heldGrid.getDataCommunicator().getInMemorySorting(), null))
 				.collect(Collectors.toList());
 	}
 
+	@Override
+	public Stream<T> streamItems() {
+		if (getPageSize() > 0) {
+			return TableHolder.super.streamItems();
+		}
+		// hand out the data provider's stream as is, so back-end cursors are read while exporting
+		return heldGrid.getDataProvider()
+				.fetch(new Query<>(0, Integer.MAX_VALUE, heldGrid.getDataCommunicator().getBackEndSorting(),
+						heldGrid.getDataCommunicator().getInMemorySorting(), null));
+	}
+
+	@Override
+	public Stream<T> streamRootItems() {
+		if (isHierarchical()) {
+			return streamChildrenOf(null);
+		}
+		return streamItems();
+	}
+
+	@Override
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Sets the number of items fetched from the data provider per query. With a page size greater
+	 * than 0 the items are fetched and exported one page at a time instead of with a single query,
+	 * so only one page has to be held in memory. For hierarchical grids this applies to the root
+	 * items and to the children of each item.
+	 *
+	 * @param pageSize the page size, or 0 to fetch all items with a single query
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
     @Override
     public int size() {
       return heldGrid.getDataProvider().size(isHierarchical() ? new HierarchicalQuery<>(null, null) : new Query<>());
@@ -128,7 +230,7 @@ public class DefaultGridHolder<T> implements TableHolder<T> {
 	@Override
 	public Collection<T> getRootItems() {
 		if (isHierarchical()) {
-			return ((HasHierarchicalDataProvider<T>) heldGrid).getTreeData().getRootItems();
+			return getChildren(null, 0, Integer.MAX_VALUE);
 		} else {
 			return getItems();
 		}
@@ -9,7 +9,8 @@ import java.util.function.Consumer;
 
 /**
  * This input stream deletes the given file when the InputStream is closed;
- * intended to be used with temporary files.
+ * intended to be used with temporary files. While the stream is open, it holds a
+ * reference to files of a {@link TempFileManager}, so they are not deleted as orphans.
  * 
  * Code obtained from:
  * http://vaadin.com/forum/-/message_boards/view_message/159583
@@ -21,6 +22,9 @@ public class DeletingFileInputStream extends FileInputStream implements Serializ
 
     private File file;
     private Consumer<File> onCloseCallback;
+    private boolean deleteOnClose;
+    private boolean retained;
+    private boolean closed = false;
 
 	/**
 	 * Instantiates a new deleting file input stream.
@@ -30,17 +34,41 @@ public class DeletingFileInputStream extends FileInputStream implements Serializ
 	 * @throws FileNotFoundException the file not found exception
 	 */
 	public DeletingFileInputStream(File file, Consumer<File> onCloseCallback) throws FileNotFoundException {
+		this(file, onCloseCallback, true);
+	}
+
+	/**
+	 * Instantiates a new file input stream, which deletes the file when closed only if asked to.
+	 * 
+	 * @param file the file
+	 * @param onCloseCallback callback invoked once after the stream was closed
+	 * @param deleteOnClose whether the file is deleted when the stream is closed
+	 * @throws FileNotFoundException the file not found exception
+	 */
+	public DeletingFileInputStream(File file, Consumer<File> onCloseCallback, boolean deleteOnClose)
+			throws FileNotFoundException {
 		super(file);
 		this.file = file;
 		this.onCloseCallback = onCloseCallback;
+		this.deleteOnClose = deleteOnClose;
+		this.retained = TempFileManager.retainFile(file);
 	}
 
 	@Override
 	public void close() throws IOException {
 		super.close();
+		if (closed) {
+			return;
+		}
+		closed = true;
 		if (onCloseCallback != null) {
 			onCloseCallback.accept(file);
 		}
-		file.delete();
+		if (retained) {
+			TempFileManager.releaseFile(file);
+		}
+		if (deleteOnClose) {
+			TempFileManager.releaseFile(file);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package com.vaadin.addon.tableexport;
+
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Estimates the column widths from the number of characters of the header and of the values of a
+ * bounded sample of data rows, instead of measuring the rendered text of every cell. Numbers and
+ * dates are estimated from their data format rather than formatted.
+ */
+public class EstimatedColumnWidthStrategy implements ColumnWidthStrategy {
+
+    private static final long serialVersionUID = 3925105316421749381L;
+
+    /** Excel's maximum column width, in units of 1/256th of a character. */
+    private static final int MAX_WIDTH = 255 * 256;
+
+    private final int sampleRows;
+    private final int padding;
+
+    private int measuredRows;
+    private int[] maxChars;
+    private int[] decimals;
+    private boolean[] grouping;
+    private int[] fixedChars;
+
+    /**
+     * Estimates the widths from the first 1000 data rows.
+     */
+    public EstimatedColumnWidthStrategy() {
+        this(1000);
+    }
+
+    /**
+     * @param sampleRows the number of data rows to measure
+     */
+    public EstimatedColumnWidthStrategy(int sampleRows) {
+        this(sampleRows, 2);
+    }
+
+    /**
+     * @param sampleRows the number of data rows to measure
+     * @param padding    the number of characters added to the longest value
+     */
+    public EstimatedColumnWidthStrategy(int sampleRows, int padding) {
+        this.sampleRows = sampleRows;
+        this.padding = padding;
+    }
+
+    @Override
+    public void start(Sheet sheet, ColumnPlan plan) {
+        Class<?>[] types = new Class<?>[plan.size()];
+        String[] formats = new String[plan.size()];
+        for (int col = 0; col < plan.size(); col++) {
+            types[col] = plan.getType(col);
+            formats[col] = plan.getDataStyle(col).getDataFormatString();
+        }
+        start(types, formats);
+    }
+
+    /**
+     * Starts measuring columns of the given types and data formats, without a sheet.
+     */
+    void start(Class<?>[] types, String[] formats) {
+        int size = types.length;
+        measuredRows = 0;
+        maxChars = new int[size];
+        decimals = new int[size];
+        grouping = new boolean[size];
+        fixedChars = new int[size];
+        for (int col = 0; col < size; col++) {
+            String format = formats[col];
+            if (CellWriters.isDate(types[col])) {
+                // a date always takes about as many characters as its format
+                fixedChars[col] = null == format ? 10 : format.length();
+            } else if (null != format && !"General".equals(format)) {
+                int point = format.indexOf('.');
+                if (point >= 0) {
+                    while (point + 1 + decimals[col] < format.length()
+                            && isDigitPlaceholder(format.charAt(point + 1 + decimals[col]))) {
+                        decimals[col]++;
+                    }
+                }
+                grouping[col] = format.indexOf(',') >= 0;
+            }
+        }
+    }
+
+    private static boolean isDigitPlaceholder(char c) {
+        return c == '0' || c == '#' || c == '?';
+    }
+
+    @Override
+    public boolean isMeasuring() {
+        return measuredRows < sampleRows;
+    }
+
+    @Override
+    public void measure(int col, Object value) {
+        if (null == value) {
+            return;
+        }
+        int chars;
+        if (value instanceof CharSequence) {
+            chars = ((CharSequence) value).length();
+        } else if (fixedChars[col] > 0 && !(value instanceof String)) {
+            chars = fixedChars[col];
+        } else if (value instanceof Number && (decimals[col] > 0 || grouping[col])) {
+            chars = numberChars((Number) value, decimals[col], grouping[col]);
+        } else {
+            chars = value.toString().length();
+        }
+        if (chars > maxChars[col]) {
+            maxChars[col] = chars;
+        }
+    }
+
+    private static int numberChars(Number number, int decimals, boolean grouping) {
+        double d = number.doubleValue();
+        int digits = 1;
+        for (double integer = Math.abs(d); integer >= 10 && digits < 20; integer /= 10) {
+            digits++;
+        }
+        int chars = digits + (decimals > 0 ? decimals + 1 : 0);
+        if (grouping) {
+            chars += (digits - 1) / 3;
+        }
+        return d < 0 ? chars + 1 : chars;
+    }
+
+    @Override
+    public void endRow() {
+        measuredRows++;
+    }
+
+    @Override
+    public void apply(Sheet sheet, ColumnPlan plan) {
+        for (int col = 0; col < plan.size(); col++) {
+            sheet.setColumnWidth(col, getWidth(col));
+        }
+    }
+
+    /**
+     * @return the estimated width of the column, in units of 1/256th of a character
+     */
+    int getWidth(int col) {
+        return Math.min((maxChars[col] + padding) * 256, MAX_WIDTH);
+    }
+}
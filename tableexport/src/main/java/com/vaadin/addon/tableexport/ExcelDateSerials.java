@@ -0,0 +1,117 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Converts dates to Excel date serial numbers, the number of days since the workbook's date epoch
+ * with the time of day as fraction. The conversion is plain arithmetic on the epoch day and time
+ * of day, without the Calendar POI creates for every {@link java.util.Date} cell. Points in time
+ * are converted to the local time of the given zone; the zone offset found for one instant is
+ * cached together with the range of instants it is valid for, so exports with many nearby or
+ * repeated timestamps resolve the offset only once per daylight saving period.
+ */
+public class ExcelDateSerials implements Serializable {
+
+    private static final long serialVersionUID = -3861497531254906742L;
+
+    /** Returned for dates before the workbook's date epoch, which Excel cannot represent. */
+    public static final double INVALID = -1;
+
+    private static final long EPOCH_DAY_1900 = LocalDate.of(1899, 12, 31).toEpochDay();
+    private static final long EPOCH_DAY_1904 = LocalDate.of(1904, 1, 1).toEpochDay();
+    private static final double NANOS_PER_DAY = 86_400_000_000_000d;
+
+    private final boolean date1904;
+    private final ZoneId zone;
+
+    // the cached zone offset and the range of epoch seconds it applies to
+    private transient long offsetValidFrom = Long.MAX_VALUE;
+    private transient long offsetValidUntil = Long.MIN_VALUE;
+    private transient int offsetSeconds;
+
+    /**
+     * @param date1904 whether the workbook uses the 1904 date system
+     * @param zone     the zone points in time are converted in
+     */
+    public ExcelDateSerials(boolean date1904, ZoneId zone) {
+        this.date1904 = date1904;
+        this.zone = zone;
+    }
+
+    /**
+     * @return the serial of the day, or {@link #INVALID}
+     */
+    public double toSerial(LocalDate date) {
+        return daySerial(date.toEpochDay());
+    }
+
+    /**
+     * @return the serial of the date and time, or {@link #INVALID}
+     */
+    public double toSerial(LocalDateTime dateTime) {
+        double day = daySerial(dateTime.toLocalDate().toEpochDay());
+        if (day == INVALID) {
+            return INVALID;
+        }
+        return day + dateTime.toLocalTime().toNanoOfDay() / NANOS_PER_DAY;
+    }
+
+    /**
+     * @return the serial of the local date and time of the instant in this converter's zone, or
+     *         {@link #INVALID}
+     */
+    public double toSerial(Instant instant) {
+        return toSerial(instant.getEpochSecond(), instant.getNano());
+    }
+
+    /**
+     * @return the serial of the local date and time of the epoch milliseconds in this converter's
+     *         zone, or {@link #INVALID}
+     */
+    public double toSerial(long epochMillis) {
+        return toSerial(Math.floorDiv(epochMillis, 1000), (int) Math.floorMod(epochMillis, 1000) * 1_000_000);
+    }
+
+    private double toSerial(long epochSecond, int nanos) {
+        long localSecond = epochSecond + offsetAt(epochSecond);
+        long epochDay = Math.floorDiv(localSecond, 86_400);
+        double day = daySerial(epochDay);
+        if (day == INVALID) {
+            return INVALID;
+        }
+        long nanoOfDay = Math.floorMod(localSecond, 86_400) * 1_000_000_000L + nanos;
+        return day + nanoOfDay / NANOS_PER_DAY;
+    }
+
+    private int offsetAt(long epochSecond) {
+        if (epochSecond < offsetValidFrom || epochSecond >= offsetValidUntil) {
+            ZoneRules rules = zone.getRules();
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            offsetSeconds = rules.getOffset(instant).getTotalSeconds();
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            offsetValidFrom = null == previous ? Long.MIN_VALUE : previous.toEpochSecond();
+            offsetValidUntil = null == next ? Long.MAX_VALUE : next.toEpochSecond();
+        }
+        return offsetSeconds;
+    }
+
+    private double daySerial(long epochDay) {
+        if (date1904) {
+            long days = epochDay - EPOCH_DAY_1904;
+            return days < 0 ? INVALID : days;
+        }
+        long days = epochDay - EPOCH_DAY_1900;
+        if (days < 1) {
+            return INVALID;
+        }
+        // Excel treats 1900 as a leap year, so every day from March 1st 1900 is one day further
+        return days < 60 ? days : days + 1;
+    }
+}
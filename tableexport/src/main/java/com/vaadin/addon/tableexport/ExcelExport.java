@@ -3,25 +3,29 @@ package com.vaadin.addon.tableexport;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.time.ZoneId;
+import java.util.AbstractCollection;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.BorderStyle;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Date1904Support;
 import org.apache.poi.ss.usermodel.FillPatternType;
 import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.HorizontalAlignment;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.PrintSetup;
@@ -30,45 +34,27 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.VerticalAlignment;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.ss.util.CellUtil;
 import org.apache.poi.ss.util.RegionUtil;
 import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
 import com.vaadin.ui.Grid;
 
 /**
  * The Class ExcelExport. Implementation of TableExport to export Vaadin Tables to Excel .xls files.
+ * Passing a workbook from {@link #createStreamingWorkbook(int, boolean, boolean)} to one of the
+ * constructors taking a Workbook exports to .xlsx files, streaming the rows through a fixed
+ * window of rows held in memory.
  *
  * @author jnash
  * @version $Revision: 1.2 $
  */
-public class ExcelExport extends TableExport {
+public class ExcelExport extends SpreadsheetExport {
 
     private static final long serialVersionUID = -8404407996727936497L;
 
     private static Logger LOGGER = Logger.getLogger(ExcelExport.class.getName());
 
-    /**
-     * The name of the sheet in the workbook the table contents will be written to.
-     */
-    protected String sheetName;
-
-    /**
-     * The title of the "report" of the table contents.
-     */
-    protected String reportTitle;
-
-    /**
-     * The filename of the workbook that will be sent to the user.
-     */
-    protected String exportFileName;
-
-    /**
-     * Flag indicating whether we will add a totals row to the Table. A totals row in the Table is
-     * typically implemented as a footer and therefore is not part of the data source.
-     */
-    protected boolean displayTotals;
-
     /**
      * Flag indicating whether the first column should be treated as row headers. They will then be
      * formatted either like the column headers or a special row headers CellStyle can be specified.
@@ -84,6 +70,12 @@ public class ExcelExport extends TableExport {
      * The Sheet object that will contain the table contents report.
      */
     protected Sheet sheet;
+
+    /**
+     * @deprecated hierarchical totals are summed while the rows are written, this sheet is no
+     *             longer created
+     */
+    @Deprecated
     protected Sheet hierarchicalTotalsSheet = null;
 
     /**
@@ -112,11 +104,57 @@ public class ExcelExport extends TableExport {
      * The totals row.
      */
     protected Row titleRow, headerRow, totalsRow;
+    @Deprecated
     protected Row hierarchicalTotalsRow;
-    // This let's the user specify the data format of the column in case the formatting of the column
-    // will not be properly identified by the class of the column. In this case, the specified format is
-    // used.  However, all other cell stylings will be those of the
-    protected Map<String, String> columnExcelFormatMap = new HashMap<>();
+
+    /**
+     * The writers used to write the values into the cells, by column type.
+     */
+    protected CellWriters cellWriters = new CellWriters();
+
+    /**
+     * Determines the column widths, by default estimated from a sample of the data rows.
+     */
+    protected ColumnWidthStrategy columnWidthStrategy = new EstimatedColumnWidthStrategy();
+
+    /**
+     * The running sums of the numeric columns for the totals row, null if they are not tracked.
+     */
+    protected transient ColumnTotals columnTotals;
+
+    /**
+     * The exported columns, resolved once per export by convertTable().
+     */
+    protected transient ColumnPlan columnPlan;
+
+    /**
+     * The registry all styles derived during the export are created through.
+     */
+    protected transient CellStyleRegistry cellStyleRegistry;
+
+    /**
+     * Number of items fetched ahead on a separate thread while the rows of the previous batch are
+     * written. 0 fetches and writes on the calling thread.
+     */
+    protected int prefetchBatchSize = 0;
+
+    /**
+     * Executor running the prefetching thread. If null, a new daemon thread is started per export.
+     */
+    protected transient Executor prefetchExecutor;
+
+    /**
+     * How long the export waits for the next prefetched batch before it fails.
+     */
+    protected long prefetchTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+
+    /* isCellStylePerRow() and isCellValueCustom() of the export being converted */
+    private transient boolean cellStylePerRow = false;
+    private transient boolean cellValueCustom = false;
+
+    /* the outline of the hierarchical rows being added, and whether descendant rows are added */
+    private transient RowOutline rowOutline;
+    private transient boolean addingDescendants = false;
 
     /**
      * At minimum, we need a Grid to export. Everything else has default settings.
@@ -243,30 +281,13 @@ public class ExcelExport extends TableExport {
 
     public ExcelExport(TableHolder<?> tableHolder, Workbook wkbk, String shtName,
                        String rptTitle, String xptFileName, boolean hasTotalsRow) {
-        super(tableHolder);
+        super(tableHolder, shtName, rptTitle, xptFileName,
+                wkbk instanceof HSSFWorkbook ? "Table-Export.xls" : "Table-Export.xlsx", hasTotalsRow);
         this.workbook = wkbk;
-        init(shtName, rptTitle, xptFileName, hasTotalsRow);
+        init();
     }
 
-    private void init(String shtName, String rptTitle, String xptFileName,
-                      boolean hasTotalsRow) {
-        if ((null == shtName) || ("".equals(shtName))) {
-            this.sheetName = "Table Export";
-        } else {
-            this.sheetName = shtName;
-        }
-        if (null == rptTitle) {
-            this.reportTitle = "";
-        } else {
-            this.reportTitle = rptTitle;
-        }
-        if ((null == xptFileName) || ("".equals(xptFileName))) {
-            this.exportFileName = "Table-Export.xls";
-        } else {
-            this.exportFileName = xptFileName;
-        }
-        this.displayTotals = hasTotalsRow;
-
+    private void init() {
         this.sheet = this.workbook.createSheet(this.sheetName);
         this.createHelper = this.workbook.getCreationHelper();
         this.dataFormat = this.workbook.createDataFormat();
@@ -294,6 +315,8 @@ public class ExcelExport extends TableExport {
 
     public void setNextTableHolder(TableHolder<?> tableHolder, String sheetName) {
         setTableHolder(tableHolder);
+        columnPlan = null;
+        columnTotals = null;
         sheet = workbook.createSheet(WorkbookUtil.createSafeSheetName(sheetName));
     }
 
@@ -324,6 +347,11 @@ public class ExcelExport extends TableExport {
         startRow = addTitleRow();
         int row = startRow;
 
+        // resolve the exported columns once for all rows
+        columnPlan = compileColumnPlan(row);
+        columnWidthStrategy.start(sheet, columnPlan);
+        columnTotals = displayTotals ? new ColumnTotals(columnPlan) : null;
+
         // add header row
         addHeaderRow(row);
         row++;
@@ -347,12 +375,11 @@ public class ExcelExport extends TableExport {
     @Override
     public File writeToTempFile() {
         if (null == mimeType) {
-            setMimeType(XLS_MIME_TYPE);
+            setMimeType(isXlsx() ? XLSX_MIME_TYPE : XLS_MIME_TYPE);
         }
         File tempFile = null;
         try {
-          tempFile = File.createTempFile("tmp", ".xls");
-          tempFile.deleteOnExit();
+          tempFile = getTempFileManager().createTempFile(isXlsx() ? ".xlsx" : ".xls");
         } catch (IOException e) {
           LOGGER.warning("Failed to create temp file " + e);
           return null;
@@ -362,18 +389,103 @@ public class ExcelExport extends TableExport {
           workbook.write(fos);
         } catch (IOException e) {
           LOGGER.warning("Converting to XLS failed with IOException " + e);
+          getTempFileManager().release(tempFile);
           return null;
+        } finally {
+          if (workbook instanceof SXSSFWorkbook) {
+            // deletes the temporary files holding the flushed rows
+            ((SXSSFWorkbook) workbook).dispose();
+          }
         }
         return tempFile;
     }
 
+    /**
+     * Deletes the temporary files holding the rows flushed by a streaming workbook.
+     */
+    @Override
+    public void discard() {
+        if (workbook instanceof SXSSFWorkbook) {
+            ((SXSSFWorkbook) workbook).dispose();
+        }
+    }
+
+    /**
+     * Writes the workbook to the stream. Streaming workbooks write their rows from the flushed
+     * temporary files straight to the stream.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (null == mimeType) {
+            setMimeType(isXlsx() ? XLSX_MIME_TYPE : XLS_MIME_TYPE);
+        }
+        try {
+            workbook.write(out);
+        } finally {
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose();
+            }
+        }
+    }
+
+    /**
+     * @return whether the workbook is written in the Office Open XML (.xlsx) format
+     */
+    protected boolean isXlsx() {
+        return !(workbook instanceof HSSFWorkbook);
+    }
+
+    @Override
+    protected void addFingerprintSettings(ExportFingerprint.Builder builder) {
+        super.addFingerprintSettings(builder);
+        builder.add("workbook", workbook.getClass().getName())
+                .add("rowHeaders", rowHeaders);
+    }
+
+    /**
+     * Creates a streaming .xlsx workbook, to be passed to one of the constructors taking a
+     * Workbook. Only the last rows of each sheet are held in memory; older rows are flushed to a
+     * temporary file as new rows are added, so exports of any size use a constant amount of heap.
+     * All phases of the export only access rows within this window. The temporary files are
+     * created by the {@link TempFileManager#getDefault() default TempFileManager} and deleted
+     * once the workbook has been written by writeToTempFile().
+     *
+     * @param rowAccessWindowSize the number of rows held in memory per sheet
+     * @param compressTempFiles   whether the temporary files are gzip compressed, trading CPU
+     *                            time for disk space
+     * @param useSharedStrings    whether the strings are written to a shared strings table, which
+     *                            is held in memory, instead of inline; shared strings give smaller
+     *                            files for repetitive text
+     * @return the workbook
+     */
+    public static SXSSFWorkbook createStreamingWorkbook(int rowAccessWindowSize, boolean compressTempFiles,
+            boolean useSharedStrings) {
+        return createStreamingWorkbook(rowAccessWindowSize, compressTempFiles, useSharedStrings,
+                TempFileManager.getDefault());
+    }
+
+    /**
+     * Creates a streaming .xlsx workbook whose temporary files are created by the given manager,
+     * see {@link #createStreamingWorkbook(int, boolean, boolean)}.
+     *
+     * @param rowAccessWindowSize the number of rows held in memory per sheet
+     * @param compressTempFiles   whether the temporary files are gzip compressed
+     * @param useSharedStrings    whether the strings are written to a shared strings table
+     * @param tempFileManager     creates and deletes the temporary files of the workbook
+     * @return the workbook
+     */
+    public static SXSSFWorkbook createStreamingWorkbook(int rowAccessWindowSize, boolean compressTempFiles,
+            boolean useSharedStrings, TempFileManager tempFileManager) {
+        return new ManagedSXSSFWorkbook(rowAccessWindowSize, compressTempFiles, useSharedStrings, tempFileManager);
+    }
+
     /**
      * Create a download resource for the export
      * 
      * @return download resource
      */
     public TemporaryFileDownloadResource getDownloadResource() {
-    	return new TemporaryFileDownloadResource(getExportFileName(), getMimeType(), this::exportToTempFile, null);
+    	return new TemporaryFileDownloadResource(createExportSource(null), getExportFileName(), getMimeType());
     }
 
     /**
@@ -384,9 +496,82 @@ public class ExcelExport extends TableExport {
      * @return download resource
      */
     public TemporaryFileDownloadResource getDownloadResource(Consumer<File> onCloseCallback) {
-    	return new TemporaryFileDownloadResource(getExportFileName(), getMimeType(), this::exportToTempFile, onCloseCallback);
+    	return new TemporaryFileDownloadResource(createExportSource(onCloseCallback), getExportFileName(), getMimeType());
+    }
+
+    /**
+     * Create a download resource streaming the export as it is written, see
+     * {@link #createStreamingExportSource()}.
+     *
+     * @return download resource
+     */
+    public TemporaryFileDownloadResource getStreamingDownloadResource() {
+        return new TemporaryFileDownloadResource(createStreamingExportSource(), getExportFileName(), getMimeType());
     }
     
+    /**
+     * Resolves the exported columns, their value providers, types, cell writers, alignments and cell
+     * styles. The
+     * header, data and totals cell styles are resolved with getColumnHeaderStyle() and
+     * getCellStyle(), and the column alignment is applied to them here once, rather than to every
+     * cell. If {@link #isCellStylePerRow()} returns true, the data cell styles are resolved per cell.
+     *
+     * @param startRow the row of the column headers
+     * @return the column plan
+     */
+    protected ColumnPlan compileColumnPlan(int startRow) {
+        cellStylePerRow = isCellStylePerRow();
+        cellValueCustom = isCellValueCustom();
+        boolean date1904 = workbook instanceof SXSSFWorkbook
+                ? ((SXSSFWorkbook) workbook).getXSSFWorkbook().isDate1904()
+                : workbook instanceof Date1904Support && ((Date1904Support) workbook).isDate1904();
+        cellWriters.setDateSerials(new ExcelDateSerials(date1904, ZoneId.systemDefault()));
+        return new ColumnPlan(getTableHolder(), getColumnIds(), cellWriters,
+                (columnId, col, alignment) -> getAlignedStyle(getColumnHeaderStyle(startRow, col), alignment),
+                (columnId, col, alignment) -> getAlignedStyle(getCellStyle(columnId, startRow + 1, col, false),
+                        alignment),
+                (columnId, col, alignment) -> getAlignedStyle(getCellStyle(columnId, startRow, col, true),
+                        alignment));
+    }
+
+    /**
+     * Returns a style equal to the given style but with the given alignment. Derived styles are
+     * created once and then reused.
+     *
+     * @param style     the style
+     * @param alignment the alignment
+     * @return the aligned style
+     */
+    protected CellStyle getAlignedStyle(CellStyle style, HorizontalAlignment alignment) {
+        return getCellStyleRegistry().withAlignment(style, alignment);
+    }
+
+    /**
+     * Returns the registry of the workbook's styles. Styles that are derived from other styles,
+     * including in subclasses, should be created through the registry so that equal styles are
+     * shared.
+     *
+     * @return the cell style registry
+     */
+    public CellStyleRegistry getCellStyleRegistry() {
+        if (null == cellStyleRegistry) {
+            cellStyleRegistry = new CellStyleRegistry(workbook);
+        }
+        return cellStyleRegistry;
+    }
+
+    /**
+     * Returns the plan of the exported columns, compiling it if the export has not compiled it yet.
+     *
+     * @return the column plan
+     */
+    protected ColumnPlan getColumnPlan() {
+        if (null == columnPlan) {
+            columnPlan = compileColumnPlan(0);
+        }
+        return columnPlan;
+    }
+
     /**
      * Initial sheet setup. Override this method to specifically change initial, sheet-wide,
      * settings.
@@ -396,9 +581,6 @@ public class ExcelExport extends TableExport {
         printSetup.setLandscape(true);
         sheet.setFitToPage(true);
         sheet.setHorizontallyCenter(true);
-        if ((isHierarchical()) && (displayTotals)) {
-            hierarchicalTotalsSheet = workbook.createSheet("tempHts");
-        }
     }
 
     /**
@@ -456,15 +638,14 @@ public class ExcelExport extends TableExport {
         Cell headerCell;
         String columnId;
         headerRow.setHeightInPoints(40);
-        for (int col = 0; col < getColumnIds().size(); col++) {
-            columnId = getColumnIds().get(col);
+        ColumnPlan plan = getColumnPlan();
+        for (int col = 0; col < plan.size(); col++) {
+            columnId = plan.getColumnId(col);
             headerCell = headerRow.createCell(col);
-            headerCell.setCellValue(createHelper.createRichTextString(getTableHolder().getColumnHeader(columnId)
-                    .toString()));
-            headerCell.setCellStyle(getColumnHeaderStyle(row, col));
-
-            Short poiAlignment = getTableHolder().getCellAlignment(columnId);
-            CellUtil.setAlignment(headerCell, HorizontalAlignment.forInt(poiAlignment));
+            String header = getTableHolder().getColumnHeader(columnId).toString();
+            headerCell.setCellValue(createHelper.createRichTextString(header));
+            columnWidthStrategy.measure(col, header);
+            headerCell.setCellStyle(plan.getHeaderStyle(col));
         }
     }
 
@@ -488,17 +669,86 @@ public class ExcelExport extends TableExport {
     }
 
     /**
-     * Returns a collection of the root items for a hierarchical export.
+     * Returns a collection of the root items for a hierarchical export. By default the collection
+     * is a view of the TableHolder's root items, which are only fetched if it is iterated; the
+     * export then streams them from the TableHolder instead.
      *
      * @return a collection of the root items
+     * @deprecated the export consumes {@link #streamRootItems()}, override that method instead;
+     *             the collections returned by overrides of this method are still streamed by it
      */
+    @Deprecated
     protected Collection<?> getRootItems() {
-        return getTableHolder().getRootItems();
+        return new HolderRootItems();
+    }
+
+    /**
+     * Returns a stream of the root items for a hierarchical export. The stream is closed once all
+     * root items have been added. The root items returned by {@link #getRootItems()} are streamed,
+     * or the root items are streamed from the TableHolder if getRootItems() returns its default
+     * view of them.
+     *
+     * @return a stream of the root items
+     */
+    @SuppressWarnings("deprecation")
+    protected Stream<?> streamRootItems() {
+        Collection<?> rootItems = getRootItems();
+        if (rootItems instanceof HolderRootItems) {
+            return getTableHolder().streamRootItems();
+        }
+        return rootItems.stream();
     }
 
     /**
-     * For Hierarchical Containers, this method recursively adds root items and child items. The
-     * child items are appropriately grouped using grouping/outlining sheet functionality. Override
+     * The root items of the TableHolder, fetched when the collection is first accessed.
+     */
+    private final class HolderRootItems extends AbstractCollection<Object> {
+
+        private Collection<?> items;
+
+        private Collection<?> getItems() {
+            if (null == items) {
+                items = getTableHolder().getRootItems();
+            }
+            return items;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Iterator<Object> iterator() {
+            return (Iterator<Object>) getItems().iterator();
+        }
+
+        @Override
+        public int size() {
+            return getItems().size();
+        }
+    }
+
+    /**
+     * Wraps the stream so it is read ahead on a separate thread if a prefetch batch size is set.
+     *
+     * @param items the stream of items to export
+     * @return the stream to read the items from
+     */
+    protected <X> Stream<X> prefetch(Stream<X> items) {
+        if (prefetchBatchSize <= 0) {
+            return items;
+        }
+        Executor executor = prefetchExecutor;
+        if (null == executor) {
+            executor = command -> {
+                Thread thread = new Thread(command, "tableexport-prefetch");
+                thread.setDaemon(true);
+                thread.start();
+            };
+        }
+        return PrefetchingIterator.prefetch(items, prefetchBatchSize, prefetchTimeoutMillis, executor);
+    }
+
+    /**
+     * For Hierarchical Containers, this method adds root items and their descendants. The
+     * descendants are grouped below their parents using outline levels for every depth. Override
      * this method to make any changes. To change the CellStyle used for all Table data use
      * setDataStyle(). For different data cells to have different CellStyles, override
      * getDataStyle().
@@ -507,43 +757,30 @@ public class ExcelExport extends TableExport {
      * @return the int
      */
     protected int addHierarchicalDataRows(Sheet sheetToAddTo, int row) {
-        Collection<?> roots = getRootItems();
         int localRow = row;
         /*
          * For Hierarchical Containers, the outlining/grouping in the sheet is with the summary row
          * at the top and the grouped/outlined subcategories below.
          */
-        sheet.setRowSumsBelow(false);
+        sheetToAddTo.setRowSumsBelow(false);
         int count = 0;
-        for (Object rootId : roots) {
-            count = addDataRowRecursively(sheetToAddTo, rootId, localRow);
-            // for totals purposes, we just want to add rootIds which contain totals
-            // so we store just the totals in a separate sheet.
-            if (displayTotals) {
-                addDataRow(hierarchicalTotalsSheet, rootId, localRow);
-            }
-            if (count > 1) {
-                sheet.groupRow(localRow + 1, (localRow + count) - 1);
-                if (collapseRowGroup(rootId)) {
-                	sheet.setRowGroupCollapsed(localRow + 1, true);
-                }
+        RowOutline outline = new RowOutline(sheetToAddTo);
+        rowOutline = outline;
+        try (Stream<?> roots = prefetch(streamRootItems())) {
+            Iterator<?> iterator = roots.iterator();
+            while (iterator.hasNext()) {
+                Object rootId = iterator.next();
+                count = addDataRowRecursively(sheetToAddTo, rootId, localRow);
+                localRow = localRow + count;
             }
-            localRow = localRow + count;
+        } finally {
+            rowOutline = null;
         }
+        // outline groups and collapsed states are applied once all rows are written
+        outline.apply();
         return localRow;
     }
 
-    /**
-     * Determines if a group rooted in object {@code rootId} should be collapsed or not.
-     * By default, all rows of the hierarchical containers are not collapsed.
-     *
-     * @param rootId
-     * @return
-     */
-    protected boolean collapseRowGroup(Object rootId) {
-      return true;
-    }
-
     /**
      * this method adds row items for non-Hierarchical Containers. Override this method to make any
      * changes. To change the CellStyle used for all Table data use setDataStyle(). For different
@@ -553,90 +790,166 @@ public class ExcelExport extends TableExport {
      * @return the int
      */
     protected int addDataRows(Sheet sheetToAddTo, int row) {
-        Collection<?> items = getTableHolder().getItems();
+        try (Stream<?> items = prefetch(getTableHolder().streamItems())) {
+            return addDataRows(sheetToAddTo, items.iterator(), row);
+        }
+    }
+
+    /**
+     * Adds the given items as data rows, starting at the given row.
+     *
+     * @param items the items
+     * @param row the row
+     * @return the row following the last added row
+     */
+    protected int addDataRows(Sheet sheetToAddTo, Iterator<?> items, int row) {
         int localRow = row;
-        for (Object item : items) {
-            addDataRow(sheetToAddTo, item, localRow);
+        while (items.hasNext()) {
+            addDataRow(sheetToAddTo, items.next(), localRow);
             localRow++;
+            rowExported(true);
         }
         return localRow;
     }
 
     /**
-     * Used by addHierarchicalDataRows() to implement the recursive calls.
+     * Used by addHierarchicalDataRows() to add the row of a root item and, depth first, the rows
+     * of all its descendants. The descendants are walked with an explicit stack rather than by
+     * recursion, and their outline levels are set while they are added.
      *
      * @param rootItem the root item
      * @param row        the row
-     * @return the int
+     * @return the number of added rows
      */
     protected <X> int addDataRowRecursively(Sheet sheetToAddTo, X rootItem, int row) {
-        int numberAdded = 0;
-        int localRow = row;
-        addDataRow(sheetToAddTo, rootItem, row);
-        numberAdded++;
-        for (X child : ((TableHolder<X>) getTableHolder()).getChildren(rootItem)) {
-            localRow++;
-            numberAdded = numberAdded + addDataRowRecursively(sheetToAddTo, child, localRow);
+        RowOutline outline = rowOutline;
+        int[] localRow = { row };
+        addDataRow(sheetToAddTo, rootItem, localRow[0]++);
+        rowExported(true);
+        if (null != outline) {
+            outline.startGroup(row, collapseRowGroup(rootItem));
+        }
+        // the root items contain the totals of their children, so only they are summed
+        boolean descendants = addingDescendants;
+        addingDescendants = true;
+        try {
+            visitDescendants(rootItem, (child, depth) -> {
+                addDataRow(sheetToAddTo, child, localRow[0]);
+                if (null != outline) {
+                    outline.setLevel(localRow[0], depth);
+                }
+                localRow[0]++;
+                rowExported(false);
+            });
+        } finally {
+            addingDescendants = descendants;
         }
-        return numberAdded;
+        return localRow[0] - row;
     }
 
     /**
      * This method is ultimately used by either addDataRows() or addHierarchicalDataRows() to
-     * actually add the data to the Sheet.
+     * actually add the data to the Sheet. It is called for every data row and adds it with
+     * {@link #addDataRow(Sheet, Object, int, boolean)}; the rows of the descendants of the root
+     * items of a hierarchical table are not summed into the totals row.
      *
      * @param rootItem the root item id
      * @param row        the row
      */
     protected <X> void addDataRow(Sheet sheetToAddTo, X rootItem, int row) {
+        addDataRow(sheetToAddTo, rootItem, row, !addingDescendants);
+    }
+
+    /**
+     * Adds the data row of the item.
+     *
+     * @param item     the item
+     * @param row      the row
+     * @param totalled whether the values of the row are summed into the totals row
+     */
+    protected <X> void addDataRow(Sheet sheetToAddTo, X item, int row, boolean totalled) {
         Row sheetRow = sheetToAddTo.createRow(row);
-        String columnId;
-        Object value;
-        Class<?> valueType;
-        Cell sheetCell;
-    	TableHolder<X> holder = (TableHolder<X>) getTableHolder();
-        for (int col = 0; col < getColumnIds().size(); col++) {
-            columnId = getColumnIds().get(col);
-            value = holder.getColumnValue(rootItem, columnId);
-            valueType = holder.getColumnType(columnId);
-            sheetCell = sheetRow.createCell(col);
-            setupCell(sheetCell, value, valueType, columnId, row, col);
+        ColumnPlan plan = getColumnPlan();
+        boolean measuring = columnWidthStrategy.isMeasuring();
+        for (int col = 0; col < plan.size(); col++) {
+            Cell sheetCell = sheetRow.createCell(col);
+            Object value = plan.getValue(col, item);
+            if (measuring) {
+                columnWidthStrategy.measure(col, value);
+            }
+            if (totalled && null != columnTotals) {
+                columnTotals.add(col, value);
+            }
+            setupCell(sheetCell, value, plan.getType(col), plan.getColumnId(col), row, col);
+        }
+        if (measuring) {
+            columnWidthStrategy.endRow();
         }
     }
 
     protected void setupCell(Cell sheetCell, Object value, Class<?> valueType, String columnId, int row, int col) {
-        sheetCell.setCellStyle(getCellStyle(columnId, row, col, false));
-        Short poiAlignment = getTableHolder().getCellAlignment(columnId);
-        CellUtil.setAlignment(sheetCell, HorizontalAlignment.forInt(poiAlignment));
-        setCellValue(sheetCell, value, valueType, columnId);
+        ColumnPlan plan = getColumnPlan();
+        if (cellStylePerRow) {
+            sheetCell.setCellStyle(getAlignedStyle(getCellStyle(columnId, row, col, false), plan.getAlignment(col)));
+        } else {
+            sheetCell.setCellStyle(plan.getDataStyle(col));
+        }
+        writeCellValue(sheetCell, plan, col, value);
+    }
+
+    /**
+     * Writes the value of a data cell, with setCellValue() if {@link #isCellValueCustom()} returns
+     * true and with the cell writer of the column otherwise.
+     */
+    void writeCellValue(Cell sheetCell, ColumnPlan plan, int col, Object value) {
+        if (cellValueCustom) {
+            setCellValue(sheetCell, value, plan.getType(col), plan.getColumnId(col));
+        } else if (null != value) {
+            plan.getCellWriter(col).write(sheetCell, value);
+        }
+    }
+
+    /**
+     * Returns how the values of the column are written, for the exports writing their cells
+     * without POI cells: like the cell writer of the column does, or by setCellValue() for all
+     * columns if {@link #isCellValueCustom()} returns true.
+     */
+    CellWriters.ValueKind getValueKind(ColumnPlan plan, int col) {
+        return cellValueCustom ? CellWriters.ValueKind.CUSTOM : plan.getValueKind(col);
     }
     
+	/**
+	 * Writes the value with the cell writer registered for the given type. The data rows use the
+	 * cell writers resolved in the column plan instead, unless {@link #isCellValueCustom()}
+	 * returns true: this method is then called for every data cell, including cells without a
+	 * value.
+	 */
 	protected void setCellValue(Cell sheetCell, Object value, Class<?> valueType, String columnId) {
 		if (null != value) {
-		    if (!isNumeric(valueType)) {
-		        if (java.util.Date.class.isAssignableFrom(valueType)) {
-		            sheetCell.setCellValue((Date) value);
-		        } else {
-		            sheetCell.setCellValue(createHelper.createRichTextString(value.toString()));
-		        }
-		    } else {
-		        try {
-		            // parse all numbers as double, the format will determine how they appear
-		            Double d = Double.parseDouble(value.toString());
-		            sheetCell.setCellValue(d);
-		        } catch (NumberFormatException nfe) {
-		            LOGGER.warning("NumberFormatException parsing a numeric value: " + nfe);
-		            sheetCell.setCellValue(createHelper.createRichTextString(value.toString()));
-		        }
-		    }
+		    cellWriters.getWriter(valueType).write(sheetCell, value);
 		}
 	}
 
-    public void setExcelFormatOfColumn(String columnId, String excelFormat) {
-        if (this.columnExcelFormatMap.containsKey(columnId)) {
-            this.columnExcelFormatMap.remove(columnId);
-        }
-        this.columnExcelFormatMap.put(columnId, excelFormat);
+    /**
+     * Returns whether the data cell values are written by {@link #setCellValue} for every cell,
+     * instead of by the cell writers resolved per column. Subclasses overriding setCellValue() to
+     * write the data cells return true.
+     *
+     * @return false by default
+     */
+    protected boolean isCellValueCustom() {
+        return false;
+    }
+
+    /**
+     * Registers the writer for the values of columns of the given type and its subtypes. This
+     * should be called before convertTable() is called.
+     *
+     * @param type   the column type
+     * @param writer the cell writer
+     */
+    public void setCellWriter(Class<?> type, CellWriter writer) {
+        cellWriters.register(type, writer);
     }
 
     /**
@@ -645,7 +958,10 @@ public class ExcelExport extends TableExport {
      * user using setDataStyle(). However, if the user wants to have different data items have
      * different styles, then this method should be overriden. The parameters passed in are all
      * potentially relevant items that may be used to determine what formatting to return, that are
-     * not accessible globally.
+     * not accessible globally. For data cells the style is resolved once per column when the
+     * column plan is compiled, with the first data row passed as row; if
+     * {@link #isCellStylePerRow()} returns true, it is called for every data cell with the row of
+     * the cell instead.
      *
      * @param columnId     the column id
      * @param row        the row
@@ -664,10 +980,7 @@ public class ExcelExport extends TableExport {
         if (totalsRow) {
             if (this.columnExcelFormatMap.containsKey(columnId)) {
                 short df = dataFormat.getFormat(columnExcelFormatMap.get(columnId));
-                CellStyle customTotalStyle = workbook.createCellStyle();
-                customTotalStyle.cloneStyleFrom(totalsDoubleCellStyle);
-                customTotalStyle.setDataFormat(df);
-                return customTotalStyle;
+                return getCellStyleRegistry().withDataFormat(totalsDoubleCellStyle, df);
             }
             if (isIntegerLongShortOrBigDecimal(columnType)) {
                 return totalsIntegerCellStyle;
@@ -680,11 +993,9 @@ public class ExcelExport extends TableExport {
             if (dataFormatCellStylesMap.containsKey(df)) {
                 return dataFormatCellStylesMap.get(df);
             }
-            // if it hasn't already been created for re-use, we create a cell style and override the data format
+            // if it hasn't already been created for re-use, we derive a cell style with the data format
             // For data cells, each data format corresponds to a single complete cell style
-            CellStyle retStyle = workbook.createCellStyle();
-            retStyle.cloneStyleFrom(dataFormatCellStylesMap.get(doubleDataFormat));
-            retStyle.setDataFormat(df);
+            CellStyle retStyle = getCellStyleRegistry().withDataFormat(dataFormatCellStylesMap.get(doubleDataFormat), df);
             dataFormatCellStylesMap.put(df, retStyle);
             return retStyle;
         }
@@ -693,12 +1004,23 @@ public class ExcelExport extends TableExport {
             return dataFormatCellStylesMap.get(doubleDataFormat);
         } else if (isIntegerLongShortOrBigDecimal(columnType)) {
             return dataFormatCellStylesMap.get(integerDataFormat);
-        } else if (java.util.Date.class.isAssignableFrom(columnType)) {
+        } else if (CellWriters.isDate(columnType)) {
             return dataFormatCellStylesMap.get(dateDataFormat);
         }
         return dataFormatCellStylesMap.get(doubleDataFormat);
     }
 
+    /**
+     * Returns whether the data cell styles are resolved with {@link #getCellStyle} for every cell,
+     * with the row of the cell, instead of once per column. Subclasses whose getCellStyle() returns
+     * different styles for different rows return true.
+     *
+     * @return false by default
+     */
+    protected boolean isCellStylePerRow() {
+        return false;
+    }
+
     /**
      * Adds the totals row to the report. Override this method to make any changes. Alternately, the
      * totals Row Object is accessible via getTotalsRow() after report creation. To change the
@@ -712,28 +1034,31 @@ public class ExcelExport extends TableExport {
         totalsRow = sheet.createRow(currentRow);
         totalsRow.setHeightInPoints(30);
         Cell cell;
-        for (int col = 0; col < getColumnIds().size(); col++) {
-            String columnId = getColumnIds().get(col);
+        ColumnPlan plan = getColumnPlan();
+        for (int col = 0; col < plan.size(); col++) {
+            String columnId = plan.getColumnId(col);
             cell = totalsRow.createCell(col);
             setupTotalCell(cell, columnId, currentRow, startRow, col);
         }
     }
 
 	protected void setupTotalCell(Cell cell, String columnId, int currentRow, int startRow, int col) {
-		cell.setCellStyle(getCellStyle(columnId, startRow, col, true));
-		Short poiAlignment = getTableHolder().getCellAlignment(columnId);
-		CellUtil.setAlignment(cell, HorizontalAlignment.forInt(poiAlignment));
-		Class<?> columnType = getTableHolder().getColumnType(columnId);
+		cell.setCellStyle(getColumnPlan().getTotalsStyle(col));
+		Class<?> columnType = getColumnPlan().getType(col);
 		if (isNumeric(columnType)) {
-			CellRangeAddress cra = new CellRangeAddress(startRow, currentRow - 1, col, col);
 		    if (isHierarchical()) {
-		        // 9 & 109 are for sum. 9 means include hidden cells, 109 means exclude.
-		        // this will show the wrong value if the user expands an outlined category, so
-		        // we will range value it first
-		        cell.setCellFormula("SUM(" + cra.formatAsString(hierarchicalTotalsSheet.getSheetName(),
-		                true) + ")");
+		        // a SUM over the sheet would double count the children that are summed in their
+		        // root rows, so the total of the root rows is written as a value
+		        if (null != columnTotals) {
+		            cell.setCellValue(columnTotals.getSum(col));
+		        }
 		    } else {
+		        CellRangeAddress cra = new CellRangeAddress(startRow, currentRow - 1, col, col);
 		        cell.setCellFormula("SUM(" + cra.formatAsString() + ")");
+		        if (null != columnTotals) {
+		            // cache the result summed during the row pass instead of evaluating the formula
+		            cell.setCellValue(columnTotals.getSum(col));
+		        }
 		    }
 		} else {
 		    if (0 == col) {
@@ -742,41 +1067,18 @@ public class ExcelExport extends TableExport {
 		}
 	}
 
-	protected String getTotalHeader() {
-		return "Total";
-	}
-	
     /**
      * formatting of the sheet upon completion of writing the data. For example, we can only
      * size the column widths once the data is in the report and the sheet knows how wide the data
      * is.
      */
     protected void finalSheetFormat() {
-        FormulaEvaluator evaluator = workbook.getCreationHelper().createFormulaEvaluator();
         if (isHierarchical()) {
-            /*
-             * evaluateInCell() is equivalent to paste special -> value. The formula refers to cells
-             * in the other sheet we are going to delete. We sum in the other sheet because if we
-             * summed in the main sheet, we would double count. Subtotal with hidden rows is not yet
-             * implemented in POI.
-             */
-            for (Row r : sheet) {
-                for (Cell c : r) {
-                    if (c.getCellType() == CellType.FORMULA) {
-                        evaluator.evaluateInCell(c);
-                    }
-                }
-            }
             workbook.setActiveSheet(workbook.getSheetIndex(sheet));
-            if (hierarchicalTotalsSheet != null) {
-                workbook.removeSheetAt(workbook.getSheetIndex(hierarchicalTotalsSheet));
-            }
-        } else {
-            evaluator.evaluateAll();
-        }
-        for (int col = 0; col < getColumnIds().size(); col++) {
-            sheet.autoSizeColumn(col);
         }
+        // the totals carry their cached results; let Excel recalculate any other formulas
+        workbook.setForceFormulaRecalculation(true);
+        columnWidthStrategy.apply(sheet, getColumnPlan());
     }
 
     /**
@@ -892,6 +1194,12 @@ public class ExcelExport extends TableExport {
         return createHelper.createDataFormat().getFormat("mm/dd/yyyy");
     }
 
+    @Override
+    public String getDoubleDataFormat() {
+        return dataFormat.getFormat(doubleDataFormat);
+    }
+
+    @Override
     public void setDoubleDataFormat(String excelDoubleFormat) {
         CellStyle prevDoubleDataStyle = null;
         if (dataFormatCellStylesMap.containsKey(doubleDataFormat)) {
@@ -906,6 +1214,12 @@ public class ExcelExport extends TableExport {
         }
     }
 
+    @Override
+    public String getIntegerDataFormat() {
+        return dataFormat.getFormat(integerDataFormat);
+    }
+
+    @Override
     public void setIntegerDataFormat(String excelIntegerFormat) {
         CellStyle prevIntegerDataStyle = null;
         if (dataFormatCellStylesMap.containsKey(integerDataFormat)) {
@@ -920,6 +1234,12 @@ public class ExcelExport extends TableExport {
         }
     }
 
+    @Override
+    public String getDateDataFormat() {
+        return dataFormat.getFormat(dateDataFormat);
+    }
+
+    @Override
     public void setDateDataFormat(String excelDateFormat) {
         CellStyle prevDateDataStyle = null;
         if (dataFormatCellStylesMap.containsKey(dateDataFormat)) {
@@ -1000,33 +1320,6 @@ public class ExcelExport extends TableExport {
         return this.workbook;
     }
 
-    /**
-     * Gets the sheet name.
-     *
-     * @return the sheet name
-     */
-    public String getSheetName() {
-        return this.sheetName;
-    }
-
-    /**
-     * Gets the report title.
-     *
-     * @return the report title
-     */
-    public String getReportTitle() {
-        return this.reportTitle;
-    }
-
-    /**
-     * Gets the export file name.
-     *
-     * @return the export file name
-     */
-    public String getExportFileName() {
-        return this.exportFileName;
-    }
-
     /**
      * Gets the cell style used for report data..
      *
@@ -1067,24 +1360,6 @@ public class ExcelExport extends TableExport {
         return this.titleCellStyle;
     }
 
-    /**
-     * Sets the text used for the report title.
-     *
-     * @param reportTitle the new report title
-     */
-    public void setReportTitle(String reportTitle) {
-        this.reportTitle = reportTitle;
-    }
-
-    /**
-     * Sets the export file name.
-     *
-     * @param exportFileName the new export file name
-     */
-    public void setExportFileName(String exportFileName) {
-        this.exportFileName = exportFileName;
-    }
-
     /**
      * Sets the cell style used for report data.
      *
@@ -1194,21 +1469,76 @@ public class ExcelExport extends TableExport {
     }
 
     /**
-     * Flag indicating whether a totals row will be added to the report or not.
+     * Gets the number of items fetched ahead while rows are written.
+     *
+     * @return the prefetch batch size, 0 if prefetching is disabled
+     */
+    public int getPrefetchBatchSize() {
+        return this.prefetchBatchSize;
+    }
+
+    /**
+     * Sets the number of items fetched ahead on a separate thread while the rows of the previous
+     * batch are written, so that slow data providers and the cell writing overlap. Typically set to
+     * the page size of the TableHolder. Note that the TableHolder is then read outside of the
+     * calling thread.
+     *
+     * @param prefetchBatchSize the batch size, or 0 to fetch and write on the calling thread
+     */
+    public void setPrefetchBatchSize(int prefetchBatchSize) {
+        this.prefetchBatchSize = prefetchBatchSize;
+    }
+
+    /**
+     * Sets the executor running the prefetching thread. By default a new thread is started for
+     * each export.
+     * <p>
+     * The export waits for the producer while it writes, so the executor must be able to run the
+     * producer while the export is running. Do not pass a single-thread or bounded executor that
+     * also runs the export itself, such as the executor given to
+     * {@link #exportAsync(Executor, Consumer)}: the producer would be queued
+     * behind the export waiting for it, and the export fails after the
+     * {@link #setPrefetchTimeoutMillis(long) prefetch timeout}. An executor rejecting the producer
+     * fails the export immediately.
+     *
+     * @param prefetchExecutor the executor
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    public long getPrefetchTimeoutMillis() {
+        return this.prefetchTimeoutMillis;
+    }
+
+    /**
+     * Sets how long the export waits for the next batch of prefetched items before it fails with
+     * an IllegalStateException. Defaults to five minutes.
+     *
+     * @param prefetchTimeoutMillis the timeout in milliseconds
+     */
+    public void setPrefetchTimeoutMillis(long prefetchTimeoutMillis) {
+        this.prefetchTimeoutMillis = prefetchTimeoutMillis;
+    }
+
+    /**
+     * Gets the strategy determining the column widths.
      *
-     * @return true, if totals row will be added
+     * @return the column width strategy
      */
-    public boolean isDisplayTotals() {
-        return this.displayTotals;
+    public ColumnWidthStrategy getColumnWidthStrategy() {
+        return this.columnWidthStrategy;
     }
 
     /**
-     * Sets the flag indicating whether a totals row will be added to the report or not.
+     * Sets the strategy determining the column widths. By default the widths are estimated with an
+     * {@link EstimatedColumnWidthStrategy}; use an {@link AutoSizeColumnWidthStrategy} to size the
+     * columns exactly to their contents.
      *
-     * @param displayTotals boolean
+     * @param columnWidthStrategy the column width strategy
      */
-    public void setDisplayTotals(boolean displayTotals) {
-        this.displayTotals = displayTotals;
+    public void setColumnWidthStrategy(ColumnWidthStrategy columnWidthStrategy) {
+        this.columnWidthStrategy = columnWidthStrategy;
     }
 
     /**
@@ -0,0 +1,237 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Holds a written export in memory as long as it is smaller than the memory threshold, and
+ * spills it to a temporary file once it grows past the threshold. Small exports are served
+ * without writing and reading a file, see {@link TableExport#setMemoryBufferSize(int)}.
+ * <p>
+ * The memory is held in chunks of 64 KiB, taken from and returned to a pool shared by all
+ * buffers, so repeated small exports reuse the same arrays. The buffer is read once, through
+ * {@link #getStream(Consumer)}, which releases the chunks or the file when it is closed.
+ */
+public class ExportBuffer extends OutputStream {
+
+    static final int CHUNK_SIZE = 1 << 16;
+
+    /** Chunks kept for reuse, at most 4 MiB. */
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(64);
+
+    private final int memoryThreshold;
+    private final TempFileManager tempFileManager;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private long size = 0;
+    private File file;
+    private OutputStream fileOut;
+    private boolean released = false;
+
+    /**
+     * Instantiates a buffer.
+     *
+     * @param memoryThreshold the size in bytes up to which the export is held in memory
+     * @param tempFileManager creates the file the export is spilled to
+     */
+    public ExportBuffer(int memoryThreshold, TempFileManager tempFileManager) {
+        this.memoryThreshold = memoryThreshold;
+        this.tempFileManager = tempFileManager;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            throw new IOException("The buffer has been released");
+        }
+        if (null == fileOut && size + len > memoryThreshold) {
+            spill();
+        }
+        if (null != fileOut) {
+            fileOut.write(b, off, len);
+            size += len;
+            return;
+        }
+        while (len > 0) {
+            int offset = (int) (size % CHUNK_SIZE);
+            if (offset == 0) {
+                chunks.add(takeChunk());
+            }
+            int n = Math.min(len, CHUNK_SIZE - offset);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), offset, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Moves the bytes written so far to the temporary file, which receives all further bytes.
+     */
+    private void spill() throws IOException {
+        file = tempFileManager.createTempFile(".tmp");
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+        long remaining = size;
+        for (byte[] chunk : chunks) {
+            int n = (int) Math.min(remaining, CHUNK_SIZE);
+            fileOut.write(chunk, 0, n);
+            remaining -= n;
+        }
+        returnChunks();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (null != fileOut) {
+            fileOut.flush();
+        }
+    }
+
+    /**
+     * Completes the buffer. The bytes can be read once it is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != fileOut) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * @return whether the export is held in memory
+     */
+    public boolean isInMemory() {
+        return null == file;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the file the export was spilled to, or null if it is held in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a stream of the written bytes, which releases the buffer when it is closed.
+     *
+     * @param onCloseCallback (optional) callback invoked after the stream was closed, with the
+     *                        file the export was spilled to or null if it was held in memory
+     * @return the stream
+     * @throws FileNotFoundException if the file the export was spilled to has been deleted
+     */
+    public InputStream getStream(Consumer<File> onCloseCallback) throws FileNotFoundException {
+        if (null != file) {
+            return new DeletingFileInputStream(file, onCloseCallback);
+        }
+        return new ChunkInputStream(onCloseCallback);
+    }
+
+    /**
+     * Returns the memory or deletes the file of the buffer.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        returnChunks();
+        if (null != fileOut) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                // released anyway
+            }
+        }
+        if (null != file) {
+            tempFileManager.release(file);
+        }
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = POOL.poll();
+        return null == chunk ? new byte[CHUNK_SIZE] : chunk;
+    }
+
+    private void returnChunks() {
+        for (byte[] chunk : chunks) {
+            POOL.offer(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Reads the chunks of the buffer.
+     */
+    private final class ChunkInputStream extends InputStream {
+
+        private final Consumer<File> onCloseCallback;
+        private long position = 0;
+        private boolean closed = false;
+
+        ChunkInputStream(Consumer<File> onCloseCallback) {
+            this.onCloseCallback = onCloseCallback;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int offset = (int) (position % CHUNK_SIZE);
+            int n = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), size - position);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), offset, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (null != onCloseCallback) {
+                onCloseCallback.accept(null);
+            }
+            release();
+        }
+    }
+}
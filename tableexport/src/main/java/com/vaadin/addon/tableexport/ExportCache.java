@@ -0,0 +1,389 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches exported files by the {@link ExportFingerprint} of their export, so repeated downloads
+ * of the same report are served from the file written for the first one. The files are kept on
+ * disk until the total size of the cached files exceeds the byte budget, when the least recently
+ * used files are evicted, or until they are older than the time to live. A background janitor
+ * evicts the expired files while the cache is not used. A file evicted while it is being
+ * downloaded is deleted once its last download is closed.
+ * <p>
+ * Identical exports requested while the export is being written wait for it instead of writing
+ * the same file again, and each reads its own stream of the one file. A cache with a byte budget
+ * and time to live of 0 keeps no files, it only coalesces concurrent exports: their file is
+ * deleted once the last of their streams is closed.
+ * <p>
+ * The fingerprint includes a caller supplied version of the data, which must identify the exact
+ * set of exported rows, including the filter and the user scope of the data provider, and must
+ * change whenever the exported data changes; see {@link TableExport#getFingerprint(Object)}.
+ * Otherwise users exporting differently filtered rows are served each other's files. Only exports
+ * of a single table are cached; exports of several tables into one workbook are not covered by
+ * the fingerprint.
+ */
+public class ExportCache {
+
+    private static Logger LOGGER = Logger.getLogger(ExportCache.class.getName());
+
+    private final File directory;
+    private final long maxBytes;
+    private final long timeToLiveMillis;
+    private volatile long janitorIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+
+    /* the cached files in access order, least recently used first */
+    private final LinkedHashMap<ExportFingerprint, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /* the cached files and the evicted files still being read */
+    private final Map<File, Entry> files = new HashMap<>();
+    /* the exports being written */
+    private final Map<ExportFingerprint, Flight> flights = new HashMap<>();
+    private ScheduledExecutorService janitor;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long coalesced = 0;
+
+    /**
+     * Instantiates a cache keeping the exported files where the exports wrote them.
+     *
+     * @param maxBytes         the total size of the cached files
+     * @param timeToLiveMillis how long a file is served from the cache after it was written
+     */
+    public ExportCache(long maxBytes, long timeToLiveMillis) {
+        this(null, maxBytes, timeToLiveMillis);
+    }
+
+    /**
+     * Instantiates a cache.
+     *
+     * @param directory        the directory the exported files are moved to, or null to keep them
+     *                         where the exports wrote them
+     * @param maxBytes         the total size of the cached files
+     * @param timeToLiveMillis how long a file is served from the cache after it was written
+     */
+    public ExportCache(File directory, long maxBytes, long timeToLiveMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Creates a source serving the export from the cache. Each stream looks the export up by its
+     * fingerprint and runs it only if it is not cached, so the export must be configured
+     * completely before the first stream is read. The cached file is not deleted when the stream
+     * is closed.
+     *
+     * @param export      the export
+     * @param dataVersion identifies the exported rows, including their filter and user scope, and
+     *                    the version of their data, see {@link TableExport#getFingerprint(Object)}
+     * @return stream source providing the exported data
+     */
+    public TemporaryFileStreamSource createExportSource(TableExport export, Object dataVersion) {
+        return new TemporaryFileStreamSource(() -> acquire(export, dataVersion), this::release, false);
+    }
+
+    /**
+     * Creates a download resource serving the export from the cache, see
+     * {@link #createExportSource(TableExport, Object)}.
+     *
+     * @param export      the export
+     * @param dataVersion the version of the exported data
+     * @param fileName    the file name offered to the user
+     * @return download resource
+     */
+    public TemporaryFileDownloadResource getDownloadResource(TableExport export, Object dataVersion,
+            String fileName) {
+        return new TemporaryFileDownloadResource(createExportSource(export, dataVersion), fileName,
+                export.getMimeType());
+    }
+
+    /**
+     * Returns the cached file of the export, writing it if it is not cached and not being written
+     * already, and counts the caller as a reader of the file until it calls
+     * {@link #release(File)}.
+     *
+     * @return the file, or null if the export failed
+     */
+    File acquire(TableExport export, Object dataVersion) {
+        ExportFingerprint fingerprint = export.getFingerprint(dataVersion);
+        Flight flight;
+        boolean joined;
+        synchronized (this) {
+            evictExpired();
+            Entry entry = entries.get(fingerprint);
+            if (null != entry) {
+                hits++;
+                entry.readers++;
+                return entry.file;
+            }
+            flight = flights.get(fingerprint);
+            joined = null != flight;
+            if (joined) {
+                coalesced++;
+                flight.joined++;
+            } else {
+                misses++;
+                flight = new Flight();
+                flights.put(fingerprint, flight);
+            }
+        }
+        if (joined) {
+            Entry entry = flight.result.join();
+            return null == entry ? null : entry.file;
+        }
+        Entry entry = null;
+        try {
+            File file = export.exportToTempFile();
+            if (null != file) {
+                // the cache deletes its files itself
+                export.getTempFileManager().detach(file);
+                if (null != directory) {
+                    file = moveToDirectory(file);
+                }
+                entry = new Entry(fingerprint, file);
+            }
+        } finally {
+            synchronized (this) {
+                flights.remove(fingerprint);
+                if (null != entry) {
+                    // the waiting exports read the file as well
+                    entry.readers = 1 + flight.joined;
+                    entries.put(fingerprint, entry);
+                    files.put(entry.file, entry);
+                    size += entry.length;
+                    evictOverBudget(entry);
+                    startJanitor();
+                }
+            }
+            flight.result.complete(entry);
+        }
+        return null == entry ? null : entry.file;
+    }
+
+    private File moveToDirectory(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        try {
+            Files.createDirectories(directory.toPath());
+            File target = Files.createTempFile(directory.toPath(), "export", dot < 0 ? "" : name.substring(dot))
+                    .toFile();
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return target;
+        } catch (IOException e) {
+            LOGGER.warning("Moving the export to the cache directory failed " + e);
+            return file;
+        }
+    }
+
+    /**
+     * Ends a read of a cached file, deleting the file if it was evicted and this was its last
+     * reader.
+     */
+    synchronized void release(File file) {
+        Entry entry = files.get(file);
+        if (null == entry) {
+            return;
+        }
+        entry.readers--;
+        if (entry.evicted && entry.readers <= 0) {
+            files.remove(file);
+            file.delete();
+        }
+    }
+
+    private void startJanitor() {
+        if (null != janitor) {
+            return;
+        }
+        janitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tableexport-cache-janitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = janitorIntervalMillis;
+        janitor.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Evicting expired exports failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evicts the files older than the time to live.
+     */
+    public synchronized void sweep() {
+        evictExpired();
+    }
+
+    /**
+     * Stops the janitor. Files are still cached, and the janitor is started again for the next
+     * cached file.
+     */
+    public synchronized void shutdown() {
+        if (null != janitor) {
+            janitor.shutdownNow();
+            janitor = null;
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.created >= timeToLiveMillis) {
+                iterator.remove();
+                evicted(entry);
+            }
+        }
+    }
+
+    private void evictOverBudget(Entry added) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry != added) {
+                iterator.remove();
+                evicted(entry);
+            }
+        }
+        if (size > maxBytes) {
+            // a file larger than the budget is only served to the export that wrote it
+            entries.remove(added.fingerprint);
+            evicted(added);
+        }
+    }
+
+    private void evicted(Entry entry) {
+        size -= entry.length;
+        entry.evicted = true;
+        if (entry.readers <= 0) {
+            files.remove(entry.file);
+            entry.file.delete();
+        }
+    }
+
+    /**
+     * Evicts all cached files, for example after the exported data has changed.
+     */
+    public synchronized void invalidateAll() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            evicted(entry);
+        }
+    }
+
+    /**
+     * Evicts the cached file of the given fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     */
+    public synchronized void invalidate(ExportFingerprint fingerprint) {
+        Entry entry = entries.remove(fingerprint);
+        if (null != entry) {
+            evicted(entry);
+        }
+    }
+
+    /**
+     * @return whether the file of the given fingerprint is cached
+     */
+    public synchronized boolean contains(ExportFingerprint fingerprint) {
+        evictExpired();
+        return entries.containsKey(fingerprint);
+    }
+
+    /**
+     * @return the total size of the cached files in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of exports that waited for an identical export being written
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    public long getJanitorIntervalMillis() {
+        return janitorIntervalMillis;
+    }
+
+    /**
+     * Sets how often the janitor evicts the expired files. Defaults to one minute; takes effect
+     * when the janitor is started.
+     */
+    public void setJanitorIntervalMillis(long janitorIntervalMillis) {
+        this.janitorIntervalMillis = janitorIntervalMillis;
+    }
+
+    /**
+     * An export being written.
+     */
+    private static final class Flight {
+
+        private final CompletableFuture<Entry> result = new CompletableFuture<>();
+        private int joined = 0;
+    }
+
+    /**
+     * A cached file.
+     */
+    private static final class Entry {
+
+        private final ExportFingerprint fingerprint;
+        private final File file;
+        private final long length;
+        private final long created = System.currentTimeMillis();
+        private int readers = 0;
+        private boolean evicted = false;
+
+        Entry(ExportFingerprint fingerprint, File file) {
+            this.fingerprint = fingerprint;
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies the file an export writes: the export class, the exported columns, the sort order,
+ * the formats and a caller supplied version of the data, digested with SHA-256. Two exports with
+ * the same fingerprint write the same file, so the fingerprint keys the {@link ExportCache}.
+ *
+ * @see TableExport#getFingerprint(Object)
+ */
+public final class ExportFingerprint implements Serializable {
+
+    private static final long serialVersionUID = 2402417771906366617L;
+
+    private final String digest;
+
+    private ExportFingerprint(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return the digest as a hexadecimal string
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ExportFingerprint && digest.equals(((ExportFingerprint) obj).digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return digest.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return digest;
+    }
+
+    /**
+     * Collects the settings of an export. Values are added by their string representation.
+     */
+    public static final class Builder {
+
+        private final MessageDigest messageDigest;
+
+        Builder() {
+            try {
+                messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Adds a setting.
+         *
+         * @param name  the name of the setting
+         * @param value the value, may be null
+         * @return this builder
+         */
+        public Builder add(String name, Object value) {
+            update(name);
+            update(String.valueOf(value));
+            return this;
+        }
+
+        private void update(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            // the length keeps adjacent values from running into each other
+            int length = bytes.length;
+            messageDigest.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                    (byte) length });
+            messageDigest.update(bytes);
+        }
+
+        ExportFingerprint build() {
+            byte[] hash = messageDigest.digest();
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new ExportFingerprint(hex.toString());
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.vaadin.addon.tableexport;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Runs exports with a limited number of exports at a time. Exports waiting for a slot are queued
+ * per owner, typically the user or the VaadinSession, and the owners take turns, so one user
+ * queueing many exports does not hold up the exports of the others.
+ * <p>
+ * When the free share of the heap falls below the {@link #setMinHeapHeadroom(double) minimum
+ * headroom}, queued exports are not started until it has recovered, and new exports are either
+ * queued as well or rejected, depending on the {@link LowMemoryPolicy}. A rejected asynchronous
+ * export completes as FAILED with a RejectedExecutionException.
+ * <p>
+ * Exports are submitted with {@link #submit(Object, TableExport, Consumer)}, and streamed
+ * downloads run through the scheduler by passing {@link #executor(Object)} to the
+ * {@link StreamingExportSource}.
+ */
+public class ExportScheduler {
+
+    private static Logger LOGGER = Logger.getLogger(ExportScheduler.class.getName());
+
+    /**
+     * What happens to new exports while the heap headroom is below the minimum.
+     */
+    public enum LowMemoryPolicy {
+        /** New exports are queued until the headroom has recovered. */
+        DEFER,
+        /** New exports are rejected with a RejectedExecutionException. */
+        REJECT
+    }
+
+    private static final Object ANONYMOUS = new Object();
+
+    private final int maxConcurrentExports;
+    private final Executor workers;
+
+    /* the queued exports of each owner, in the order the owners take turns */
+    private final Map<Object, ArrayDeque<Job>> queues = new LinkedHashMap<>();
+    private int queued = 0;
+    private int running = 0;
+    private boolean recheckScheduled = false;
+    private ScheduledExecutorService rechecks;
+
+    private volatile double minHeapHeadroom = 0;
+    private volatile LowMemoryPolicy lowMemoryPolicy = LowMemoryPolicy.DEFER;
+    private volatile long recheckDelayMillis = 1000;
+    private volatile int maxQueuedExports = Integer.MAX_VALUE;
+
+    /**
+     * Instantiates a scheduler running the exports on daemon threads.
+     *
+     * @param maxConcurrentExports the number of exports running at a time
+     */
+    public ExportScheduler(int maxConcurrentExports) {
+        this(maxConcurrentExports, null);
+    }
+
+    /**
+     * Instantiates a scheduler.
+     *
+     * @param maxConcurrentExports the number of exports running at a time
+     * @param workers              runs the exports, or null to run them on daemon threads; it
+     *                             must be able to run maxConcurrentExports exports at a time
+     */
+    public ExportScheduler(int maxConcurrentExports, Executor workers) {
+        if (maxConcurrentExports < 1) {
+            throw new IllegalArgumentException("maxConcurrentExports must be positive: " + maxConcurrentExports);
+        }
+        this.maxConcurrentExports = maxConcurrentExports;
+        this.workers = null == workers ? daemonThreads("tableexport-export-") : workers;
+    }
+
+    private static ExecutorService daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the export asynchronously once it is its owner's turn and a slot is free, see
+     * {@link TableExport#exportAsync(Executor, Consumer)}.
+     *
+     * @param owner        the owner of the export, such as the user or the VaadinSession, or
+     *                     null
+     * @param export       the export
+     * @param onCompletion (optional) callback invoked when the task is done
+     * @return the task running the export, which completes as FAILED with a
+     *         RejectedExecutionException if the export was rejected
+     */
+    public ExportTask submit(Object owner, TableExport export, Consumer<ExportTask> onCompletion) {
+        Job[] job = new Job[1];
+        ExportTask task = export.exportAsync(command -> job[0] = enqueue(owner, command), onCompletion);
+        synchronized (this) {
+            if (null != job[0]) {
+                job[0].task = task;
+            }
+        }
+        if (null != job[0]) {
+            task.setOnCancel(() -> cancelled(job[0]));
+        }
+        return task;
+    }
+
+    /**
+     * Returns an executor queueing its commands as exports of the given owner, for example for a
+     * {@link StreamingExportSource}. Its execute() throws a RejectedExecutionException if the
+     * export is rejected.
+     *
+     * @param owner the owner of the exports, or null
+     * @return the executor
+     */
+    public Executor executor(Object owner) {
+        return command -> enqueue(owner, command);
+    }
+
+    private Job enqueue(Object owner, Runnable command) {
+        Job job = new Job(null == owner ? ANONYMOUS : owner, command);
+        synchronized (this) {
+            if (queued >= maxQueuedExports) {
+                throw new RejectedExecutionException("Too many queued exports: " + queued);
+            }
+            if (lowMemoryPolicy == LowMemoryPolicy.REJECT && !hasHeapHeadroom()) {
+                throw new RejectedExecutionException("Not enough free heap for an export");
+            }
+            queues.computeIfAbsent(job.owner, o -> new ArrayDeque<>()).add(job);
+            queued++;
+        }
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Starts queued exports while slots are free and the heap has enough headroom.
+     */
+    private void dispatch() {
+        List<Job> started = new ArrayList<>();
+        synchronized (this) {
+            while (queued > 0) {
+                Job next = peekNext();
+                boolean cancelled = null != next.task && next.task.isCancelled();
+                if (!cancelled) {
+                    // cancelled exports only complete their task, so they start without a slot
+                    if (running >= maxConcurrentExports) {
+                        break;
+                    }
+                    if (!hasHeapHeadroom()) {
+                        scheduleRecheck();
+                        break;
+                    }
+                    running++;
+                }
+                pollNext();
+                next.counted = !cancelled;
+                started.add(next);
+            }
+        }
+        for (Job job : started) {
+            try {
+                workers.execute(job);
+            } catch (RejectedExecutionException e) {
+                LOGGER.warning("Starting an export failed " + e);
+                release(job);
+            }
+        }
+    }
+
+    /**
+     * Removes a cancelled export from its queue, if it has not been started yet, and completes its
+     * task.
+     */
+    private void cancelled(Job job) {
+        synchronized (this) {
+            ArrayDeque<Job> queue = queues.get(job.owner);
+            if (null == queue || !queue.remove(job)) {
+                // started already, the task completes itself
+                return;
+            }
+            queued--;
+            if (queue.isEmpty()) {
+                queues.remove(job.owner);
+            }
+        }
+        job.task.finishCancelled();
+    }
+
+    private Job peekNext() {
+        return queues.values().iterator().next().peek();
+    }
+
+    private void pollNext() {
+        Iterator<Map.Entry<Object, ArrayDeque<Job>>> iterator = queues.entrySet().iterator();
+        Map.Entry<Object, ArrayDeque<Job>> first = iterator.next();
+        ArrayDeque<Job> queue = first.getValue();
+        queue.poll();
+        queued--;
+        // the owner takes its next turn after the other owners
+        iterator.remove();
+        if (!queue.isEmpty()) {
+            queues.put(first.getKey(), queue);
+        }
+    }
+
+    private void scheduleRecheck() {
+        if (recheckScheduled || running > 0) {
+            // a running export dispatches again when it is done
+            return;
+        }
+        if (null == rechecks) {
+            rechecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tableexport-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        recheckScheduled = true;
+        rechecks.schedule(() -> {
+            synchronized (this) {
+                recheckScheduled = false;
+            }
+            dispatch();
+        }, recheckDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void release(Job job) {
+        synchronized (this) {
+            if (job.counted) {
+                running--;
+                job.counted = false;
+            }
+        }
+        dispatch();
+    }
+
+    private boolean hasHeapHeadroom() {
+        double min = minHeapHeadroom;
+        return min <= 0 || getHeapHeadroom() >= min;
+    }
+
+    /**
+     * Returns the free share of the maximum heap size. The used heap is measured after the last
+     * garbage collection of each heap pool, so garbage waiting to be collected is not counted.
+     * The value is approximate: objects allocated since the last collection only count once a
+     * collection has seen them. Before the first collection the current heap usage is used.
+     *
+     * @return the free share of the maximum heap size, from 0 to 1
+     */
+    protected double getHeapHeadroom() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        if (max <= 0) {
+            return 1;
+        }
+        long used = hasCollected() ? getUsedAfterCollection() : heap.getUsed();
+        return Math.max(0, (double) (max - used) / max);
+    }
+
+    private static boolean hasCollected() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector.getCollectionCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getUsedAfterCollection() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid()) {
+                continue;
+            }
+            MemoryUsage afterCollection = pool.getCollectionUsage();
+            // pools without collection usage are counted as they are
+            used += null == afterCollection ? pool.getUsage().getUsed() : afterCollection.getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Returns the number of exports starting before the export of the given task.
+     *
+     * @param task the task, as returned by submit()
+     * @return the position of the task in the queue, starting at 0, or -1 if the task is not
+     *         queued
+     */
+    public synchronized int getQueuePosition(ExportTask task) {
+        // replays the turns of the owners, leaving out cancelled exports
+        List<Iterator<Job>> turns = new ArrayList<>(queues.size());
+        for (ArrayDeque<Job> queue : queues.values()) {
+            turns.add(queue.iterator());
+        }
+        int position = 0;
+        while (!turns.isEmpty()) {
+            Iterator<Iterator<Job>> owners = turns.iterator();
+            while (owners.hasNext()) {
+                Iterator<Job> jobs = owners.next();
+                Job job = nextPending(jobs);
+                if (null == job) {
+                    owners.remove();
+                } else if (job.task == task) {
+                    return position;
+                } else {
+                    position++;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static Job nextPending(Iterator<Job> jobs) {
+        while (jobs.hasNext()) {
+            Job job = jobs.next();
+            if (null == job.task || !job.task.isCancelled()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of queued exports
+     */
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    /**
+     * @return the number of running exports
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public int getMaxConcurrentExports() {
+        return maxConcurrentExports;
+    }
+
+    public double getMinHeapHeadroom() {
+        return minHeapHeadroom;
+    }
+
+    /**
+     * Sets the free share of the maximum heap size below which no export is started. The default
+     * of 0 disables the check. The free share is measured after the last garbage collection, see
+     * {@link #getHeapHeadroom()}.
+     *
+     * @param minHeapHeadroom the minimum headroom, from 0 to 1
+     */
+    public void setMinHeapHeadroom(double minHeapHeadroom) {
+        this.minHeapHeadroom = minHeapHeadroom;
+    }
+
+    public LowMemoryPolicy getLowMemoryPolicy() {
+        return lowMemoryPolicy;
+    }
+
+    /**
+     * Sets whether new exports are queued or rejected while the heap headroom is below the
+     * minimum. Defaults to DEFER.
+     */
+    public void setLowMemoryPolicy(LowMemoryPolicy lowMemoryPolicy) {
+        this.lowMemoryPolicy = lowMemoryPolicy;
+    }
+
+    public long getRecheckDelayMillis() {
+        return recheckDelayMillis;
+    }
+
+    /**
+     * Sets how long deferred exports wait before the heap headroom is checked again while no
+     * export is running. Defaults to 1000 ms.
+     */
+    public void setRecheckDelayMillis(long recheckDelayMillis) {
+        this.recheckDelayMillis = recheckDelayMillis;
+    }
+
+    public int getMaxQueuedExports() {
+        return maxQueuedExports;
+    }
+
+    /**
+     * Sets the number of queued exports above which new exports are rejected. Unlimited by
+     * default.
+     */
+    public void setMaxQueuedExports(int maxQueuedExports) {
+        this.maxQueuedExports = maxQueuedExports;
+    }
+
+    /**
+     * A queued export.
+     */
+    private final class Job implements Runnable {
+
+        private final Object owner;
+        private final Runnable command;
+        private ExportTask task;
+        private boolean counted;
+
+        Job(Object owner, Runnable command) {
+            this.owner = owner;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                release(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handle of an export running asynchronously, see
+ * {@link TableExport#exportAsync(Executor, Consumer)}. The export writes its temporary file on
+ * the executor's thread while the handle reports the phase and the number of rows written, and
+ * can cancel it; cancellation takes effect at the next data row.
+ * <p>
+ * The completion callback is invoked on the export thread. To offer the file for download from
+ * a UI with push enabled, access the UI from the callback:
+ *
+ * <pre>
+ * export.exportAsync(executor, task -&gt; ui.access(() -&gt; {
+ *     if (task.getPhase() == ExportTask.Phase.COMPLETED) {
+ *         link.setResource(task.getDownloadResource("report.xlsx"));
+ *     }
+ * }));
+ * </pre>
+ */
+public class ExportTask {
+
+    private static Logger LOGGER = Logger.getLogger(ExportTask.class.getName());
+
+    /**
+     * The phases of an export.
+     */
+    public enum Phase {
+        /** Waiting for the executor. */
+        QUEUED,
+        /** Reading the rows and converting them. */
+        CONVERTING,
+        /** Writing the converted table to the file. */
+        WRITING,
+        /** The file is ready. */
+        COMPLETED,
+        /** The export failed, see {@link ExportTask#getFailure()}. */
+        FAILED,
+        /** The export was cancelled. */
+        CANCELLED;
+
+        public boolean isDone() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final TableExport export;
+    private final Consumer<ExportTask> onCompletion;
+    private final CompletableFuture<File> result = new CompletableFuture<>();
+
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile boolean cancelled = false;
+    private volatile long totalRows = -1;
+    private volatile long topLevelRowsWritten = 0;
+    private volatile long rowsWritten = 0;
+    private volatile Throwable failure;
+    /* notifies the scheduler queueing the export, if any */
+    private volatile Runnable onCancel;
+
+    private ExportTask(TableExport export, Consumer<ExportTask> onCompletion) {
+        this.export = export;
+        this.onCompletion = onCompletion;
+    }
+
+    static ExportTask submit(TableExport export, Executor executor, Consumer<ExportTask> onCompletion) {
+        ExportTask task = new ExportTask(export, onCompletion);
+        try {
+            executor.execute(task::run);
+        } catch (RejectedExecutionException e) {
+            task.finish(Phase.FAILED, null, e);
+        }
+        return task;
+    }
+
+    private void run() {
+        if (cancelled) {
+            finish(Phase.CANCELLED, null, null);
+            return;
+        }
+        export.setTask(this);
+        try {
+            phase = Phase.CONVERTING;
+            totalRows = export.getTableHolder().size();
+            export.convertTable();
+            checkCancelled();
+            phase = Phase.WRITING;
+            File file = export.writeToTempFile();
+            if (null == file) {
+                throw new IOException("The export could not be written");
+            }
+            if (cancelled) {
+                export.getTempFileManager().release(file);
+                throw new CancellationException();
+            }
+            finish(Phase.COMPLETED, file, null);
+        } catch (CancellationException e) {
+            export.discard();
+            finish(Phase.CANCELLED, null, null);
+        } catch (Throwable t) {
+            LOGGER.log(Level.WARNING, "The export failed", t);
+            export.discard();
+            finish(Phase.FAILED, null, t);
+        } finally {
+            export.setTask(null);
+        }
+    }
+
+    void rowExported(boolean topLevel) {
+        // only the export thread writes the counters
+        rowsWritten++;
+        if (topLevel) {
+            topLevelRowsWritten++;
+        }
+        checkCancelled();
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("The export was cancelled");
+        }
+    }
+
+    void setOnCancel(Runnable onCancel) {
+        this.onCancel = onCancel;
+    }
+
+    /**
+     * Completes an export that was cancelled before it was started.
+     */
+    void finishCancelled() {
+        finish(Phase.CANCELLED, null, null);
+    }
+
+    private void finish(Phase donePhase, File file, Throwable error) {
+        failure = error;
+        phase = donePhase;
+        if (donePhase == Phase.COMPLETED) {
+            result.complete(file);
+        } else if (donePhase == Phase.CANCELLED) {
+            result.cancel(false);
+        } else {
+            result.completeExceptionally(error);
+        }
+        if (null != onCompletion) {
+            try {
+                onCompletion.accept(this);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "The export completion callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * Requests the export to be cancelled. A running export stops at its next data row and
+     * deletes its temporary files. An export queued by an {@link ExportScheduler} is removed from
+     * the queue and completes as CANCELLED right away.
+     *
+     * @return false if the export was already done
+     */
+    public boolean cancel() {
+        if (phase.isDone()) {
+            return false;
+        }
+        cancelled = true;
+        Runnable listener = onCancel;
+        if (null != listener) {
+            listener.run();
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public TableExport getExport() {
+        return export;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public boolean isDone() {
+        return phase.isDone();
+    }
+
+    /**
+     * @return the number of data rows written so far, including the descendant rows of a
+     *         hierarchical table
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return the number of rows or, for hierarchical tables, root rows to be written, as
+     *         reported by TableHolder.size(), or -1 until the export has started
+     */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * @return the fraction of the rows or, for hierarchical tables, root rows written so far,
+     *         from 0 to 1, or -1 if the number of rows is not known yet
+     */
+    public double getProgress() {
+        long total = totalRows;
+        if (phase == Phase.COMPLETED) {
+            return 1;
+        }
+        if (total < 0) {
+            return -1;
+        }
+        return total == 0 ? 0 : Math.min(1, (double) topLevelRowsWritten / total);
+    }
+
+    /**
+     * @return the failure of the export, if it failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits for the export to complete.
+     *
+     * @return the exported file
+     * @throws CancellationException if the export was cancelled
+     * @throws ExecutionException    if the export failed
+     * @throws InterruptedException  if the current thread was interrupted while waiting
+     */
+    public File get() throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    /**
+     * @return the exported file, or null if the export has not completed
+     */
+    public File getFile() {
+        return phase == Phase.COMPLETED ? result.getNow(null) : null;
+    }
+
+    /**
+     * Creates a download resource for the exported file. The file is deleted once it has been
+     * downloaded.
+     *
+     * @param fileName the file name offered to the user
+     * @return the download resource
+     * @throws IllegalStateException if the export has not completed
+     */
+    public TemporaryFileDownloadResource getDownloadResource(String fileName) {
+        File file = getFile();
+        if (null == file) {
+            throw new IllegalStateException("The export has not completed: " + phase);
+        }
+        return new TemporaryFileDownloadResource(fileName, export.getMimeType(), () -> file);
+    }
+}
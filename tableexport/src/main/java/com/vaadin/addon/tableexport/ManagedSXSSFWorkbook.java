@@ -0,0 +1,94 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.openxml4j.util.ZipFileZipEntrySource;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.streaming.GZIPSheetDataWriter;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SheetDataWriter;
+
+/**
+ * Streaming workbook whose temporary files, the flushed rows of each sheet and the template
+ * written by write(), are created and deleted by a {@link TempFileManager}. POI's default
+ * temporary file strategy registers every file with File.deleteOnExit(), and installing another
+ * strategy would change it for every POI user of the JVM.
+ */
+class ManagedSXSSFWorkbook extends SXSSFWorkbook {
+
+    private final TempFileManager tempFileManager;
+    private final SharedStringsTable sharedStrings;
+    private final List<File> sheetFiles = new ArrayList<>();
+
+    ManagedSXSSFWorkbook(int rowAccessWindowSize, boolean compressTempFiles, boolean useSharedStrings,
+            TempFileManager tempFileManager) {
+        super(null, rowAccessWindowSize, compressTempFiles, useSharedStrings);
+        this.tempFileManager = tempFileManager;
+        this.sharedStrings = useSharedStrings ? getXSSFWorkbook().getSharedStringSource() : null;
+    }
+
+    @Override
+    protected SheetDataWriter createSheetDataWriter() throws IOException {
+        // the writers create their file in their constructor, so they use locals, not fields
+        TempFileManager manager = tempFileManager;
+        List<File> files = sheetFiles;
+        if (isCompressTempFiles()) {
+            return new GZIPSheetDataWriter(sharedStrings) {
+                @Override
+                public File createTempFile() throws IOException {
+                    File file = manager.createTempFile(".gz");
+                    files.add(file);
+                    return file;
+                }
+            };
+        }
+        return new SheetDataWriter(sharedStrings) {
+            @Override
+            public File createTempFile() throws IOException {
+                File file = manager.createTempFile(".xml");
+                files.add(file);
+                return file;
+            }
+        };
+    }
+
+    /**
+     * Writes the workbook like SXSSFWorkbook.write() does, with the template file created by the
+     * manager.
+     */
+    @Override
+    public void write(OutputStream stream) throws IOException {
+        flushSheets();
+        File template = tempFileManager.createTempFile(".xlsx");
+        try {
+            try (FileOutputStream out = new FileOutputStream(template)) {
+                getXSSFWorkbook().write(out);
+            }
+            try (ZipSecureFile zip = new ZipSecureFile(template);
+                    ZipFileZipEntrySource source = new ZipFileZipEntrySource(zip)) {
+                injectData(source, stream);
+            }
+        } finally {
+            tempFileManager.release(template);
+        }
+    }
+
+    /**
+     * Deletes the files of the sheets and releases them from the manager.
+     */
+    @Override
+    public boolean dispose() {
+        boolean success = super.dispose();
+        for (File file : sheetFiles) {
+            tempFileManager.release(file);
+        }
+        sheetFiles.clear();
+        return success;
+    }
+}
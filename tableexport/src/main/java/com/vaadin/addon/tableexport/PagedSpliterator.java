@@ -0,0 +1,51 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator that lazily fetches its items page by page. A page is only requested once all
+ * items of the previous page have been consumed, and fetching stops with the first page that
+ * holds less than {@code pageSize} items.
+ *
+ * @param <T> the item type
+ */
+class PagedSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+    /** Fetches the page for the given offset and limit. */
+    private final BiFunction<Integer, Integer, Collection<T>> pageFetcher;
+    private final int pageSize;
+
+    private Iterator<T> page = Collections.emptyIterator();
+    private int offset = 0;
+    private boolean lastPage = false;
+
+    PagedSpliterator(BiFunction<Integer, Integer, Collection<T>> pageFetcher, int pageSize) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED);
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be greater than 0");
+        }
+        this.pageFetcher = pageFetcher;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (!page.hasNext()) {
+            if (lastPage) {
+                return false;
+            }
+            Collection<T> items = pageFetcher.apply(offset, pageSize);
+            offset += pageSize;
+            lastPage = items.size() < pageSize;
+            page = items.iterator();
+        }
+        action.accept(page.next());
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterator that reads its source stream on a separate producer thread. The producer hands the
+ * items over in batches through a bounded queue, so that the next batch is fetched while the
+ * consumer is still processing the current one. At most the batch being filled, the queued
+ * batches and the batch being consumed are held in memory.
+ *
+ * @param <T> the item type
+ */
+class PrefetchingIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private static final List<Object> END = new ArrayList<>(0);
+
+    private final Stream<T> source;
+    private final int batchSize;
+    private final BlockingQueue<List<T>> queue;
+    private final long timeoutMillis;
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    private Iterator<T> current = Collections.emptyIterator();
+    private boolean done = false;
+
+    /**
+     * Starts prefetching the given stream.
+     *
+     * @param source          the source stream, closed by the producer once it is exhausted
+     * @param batchSize       the number of items handed over at once
+     * @param bufferedBatches the number of batches that may wait for the consumer
+     * @param timeoutMillis   how long the consumer waits for the next batch before failing
+     * @param executor        the executor running the producer
+     * @throws RejectedExecutionException if the executor rejects the producer, after the source
+     *                                    has been closed
+     */
+    PrefetchingIterator(Stream<T> source, int batchSize, int bufferedBatches, long timeoutMillis,
+            Executor executor) {
+        this.source = source;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(bufferedBatches);
+        this.timeoutMillis = timeoutMillis;
+        try {
+            executor.execute(this::produce);
+        } catch (RejectedExecutionException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a stream of the given source's items that is fetched ahead on a producer thread.
+     * Closing the returned stream stops the producer and closes the source.
+     */
+    static <T> Stream<T> prefetch(Stream<T> source, int batchSize, long timeoutMillis, Executor executor) {
+        PrefetchingIterator<T> iterator = new PrefetchingIterator<>(source, batchSize, 1, timeoutMillis, executor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(iterator::close);
+    }
+
+    private void produce() {
+        try (Stream<T> items = source) {
+            Iterator<T> iterator = items.iterator();
+            List<T> batch = new ArrayList<>(batchSize);
+            while (!closed && iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == batchSize) {
+                    handOff(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                handOff(batch);
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            handOffEnd();
+        }
+    }
+
+    /**
+     * Waits for room in the queue, giving up once the consumer has closed this iterator.
+     */
+    private void handOff(List<T> batch) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands over the end marker even if the producer was interrupted, as the consumer would
+     * otherwise wait forever.
+     */
+    private void handOffEnd() {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                handOff(end());
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> end() {
+        return (List<T>) END;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (done) {
+                return false;
+            }
+            List<T> batch;
+            try {
+                batch = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for export data", e);
+            }
+            if (null == batch) {
+                // the producer is stuck or was never run, e.g. queued behind this export
+                close();
+                throw new IllegalStateException("No export data was fetched within " + timeoutMillis + " ms");
+            }
+            if (batch == END) {
+                done = true;
+                rethrowFailure();
+                return false;
+            }
+            current = batch.iterator();
+        }
+        return true;
+    }
+
+    private void rethrowFailure() {
+        Throwable t = failure;
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IllegalStateException("Fetching export data failed", t);
+        }
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
@@ -0,0 +1,184 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.Arrays;
+
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+
+/**
+ * Builds the row outline of a hierarchical export while its rows are written in order. The
+ * outline level of each row is set once, and the groups are collapsed in a single final pass by
+ * {@link #apply()}, instead of calling {@link Sheet#groupRow(int, int)} per group, which
+ * rescans the rows of the sheet on every call.
+ * <p>
+ * On HSSF sheets the levels are written directly into the row records and the outline gutter is
+ * recalculated once. On SXSSF sheets, whose older rows are flushed to disk, the levels and the
+ * hidden and collapsed flags are set on each row while it is still in the row access window. On
+ * other sheets the levels are collected and grouped with one {@code groupRow} call per maximal
+ * run of rows of each level.
+ */
+class RowOutline {
+
+    /** Excel supports at most seven outline levels. */
+    static final int MAX_LEVEL = 7;
+
+    private final Sheet sheet;
+    private final HSSFSheet hssfSheet;
+    private final SXSSFSheet streamingSheet;
+
+    private int firstRow = -1;
+    private byte[] levels = new byte[0];
+    private int lastRow = -1;
+    private int maxLevel = 0;
+    private int maxLevelRow = -1;
+
+    private int[] collapsed = new int[0];
+    private int collapsedCount = 0;
+
+    private int groupRow = -1;
+    private boolean groupCollapsed;
+    private int groupSize;
+    /** Whether the next row carries the collapsed flag of the preceding group, on SXSSF sheets. */
+    private boolean markNextRow = false;
+
+    RowOutline(Sheet sheet) {
+        this.sheet = sheet;
+        this.hssfSheet = sheet instanceof HSSFSheet ? (HSSFSheet) sheet : null;
+        this.streamingSheet = sheet instanceof SXSSFSheet ? (SXSSFSheet) sheet : null;
+    }
+
+    /**
+     * Starts the group of the rows following the given written root row.
+     *
+     * @param summaryRow the root row above the group
+     * @param collapse   whether the group is collapsed
+     */
+    void startGroup(int summaryRow, boolean collapse) {
+        endGroup();
+        if (markNextRow) {
+            streamingSheet.getRow(summaryRow).setCollapsed(true);
+            markNextRow = false;
+        }
+        groupRow = summaryRow;
+        groupCollapsed = collapse;
+        groupSize = 0;
+    }
+
+    private void endGroup() {
+        if (groupRow >= 0 && groupCollapsed && groupSize > 0) {
+            if (null != streamingSheet) {
+                markNextRow = true;
+            } else {
+                collapse(groupRow);
+            }
+        }
+        groupRow = -1;
+    }
+
+    /**
+     * Sets the outline level of a written row. Rows must be passed in ascending order.
+     *
+     * @param row   the row index
+     * @param level the level, 0 for root rows
+     */
+    void setLevel(int row, int level) {
+        int capped = Math.min(level, MAX_LEVEL);
+        if (capped > maxLevel) {
+            maxLevel = capped;
+            maxLevelRow = row;
+        }
+        if (capped > 0 && groupRow >= 0) {
+            groupSize++;
+        }
+        lastRow = row;
+        if (null != streamingSheet) {
+            if (capped > 0) {
+                streamingSheet.setRowOutlineLevel(row, capped);
+                if (groupCollapsed) {
+                    streamingSheet.getRow(row).setHidden(true);
+                }
+            }
+            return;
+        }
+        if (null != hssfSheet) {
+            if (capped > 0) {
+                hssfSheet.getSheet().getRow(row).setOutlineLevel((short) capped);
+            }
+            return;
+        }
+        if (firstRow < 0) {
+            firstRow = row;
+        }
+        int index = row - firstRow;
+        if (index >= levels.length) {
+            levels = Arrays.copyOf(levels, Math.max(16, Math.max(index + 1, levels.length * 2)));
+        }
+        levels[index] = (byte) capped;
+    }
+
+    /**
+     * Collapses the group of rows below the given row when the outline is applied.
+     *
+     * @param summaryRow the row above the group
+     */
+    void collapse(int summaryRow) {
+        if (collapsedCount == collapsed.length) {
+            collapsed = Arrays.copyOf(collapsed, Math.max(16, collapsedCount * 2));
+        }
+        collapsed[collapsedCount++] = summaryRow;
+    }
+
+    /**
+     * Applies the outline levels and collapses the groups.
+     */
+    void apply() {
+        endGroup();
+        if (null != streamingSheet) {
+            if (markNextRow) {
+                SXSSFRow next = streamingSheet.getRow(lastRow + 1);
+                if (null == next) {
+                    next = streamingSheet.createRow(lastRow + 1);
+                }
+                next.setCollapsed(true);
+                markNextRow = false;
+            }
+            return;
+        }
+        if (maxLevel == 0) {
+            return;
+        }
+        if (null != hssfSheet) {
+            // groupRow raises the level of the row by one and recalculates the gutter once
+            RowRecord deepest = hssfSheet.getSheet().getRow(maxLevelRow);
+            deepest.setOutlineLevel((short) (maxLevel - 1));
+            hssfSheet.groupRow(maxLevelRow, maxLevelRow);
+        } else {
+            groupRuns();
+        }
+        for (int i = 0; i < collapsedCount; i++) {
+            sheet.setRowGroupCollapsed(collapsed[i] + 1, true);
+        }
+    }
+
+    private void groupRuns() {
+        if (firstRow < 0) {
+            return;
+        }
+        int count = lastRow - firstRow + 1;
+        for (int level = 1; level <= maxLevel; level++) {
+            int start = -1;
+            for (int index = 0; index <= count; index++) {
+                boolean inRun = index < count && levels[index] >= level;
+                if (inRun && start < 0) {
+                    start = index;
+                } else if (!inRun && start >= 0) {
+                    sheet.groupRow(firstRow + start, firstRow + index - 1);
+                    start = -1;
+                }
+            }
+        }
+    }
+}
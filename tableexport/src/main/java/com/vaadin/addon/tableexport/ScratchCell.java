@@ -0,0 +1,37 @@
+package com.vaadin.addon.tableexport;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+
+/**
+ * A cell of a private workbook, for the exports that write their cells without POI cells. The
+ * values of columns with a registered {@link CellWriter} are written into it and read back. Only
+ * numeric, text and boolean values are read back; formulas and error values are exported as blank
+ * cells. The workbook keeps every text written into it, so it is replaced after a number of texts.
+ */
+class ScratchCell {
+
+    private static final int MAX_TEXTS = 1 << 12;
+
+    private Cell cell;
+    private int texts = 0;
+
+    /**
+     * Returns the blank cell to write the next value into.
+     *
+     * @return the cell
+     */
+    Cell blank() {
+        if (null != cell && cell.getCellType() == CellType.STRING) {
+            texts++;
+        }
+        if (null == cell || texts >= MAX_TEXTS) {
+            cell = new HSSFWorkbook().createSheet().createRow(0).createCell(0);
+            texts = 0;
+        } else {
+            cell.setBlank();
+        }
+        return cell;
+    }
+}
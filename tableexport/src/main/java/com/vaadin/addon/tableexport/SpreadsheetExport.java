@@ -0,0 +1,211 @@
+package com.vaadin.addon.tableexport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The settings shared by the spreadsheet exports, {@link ExcelExport} and its subclasses as well
+ * as {@link XlsxExport}: the sheet name, the report title, the export file name, the totals row
+ * and the data formats. Each export applies the data formats to its own workbook format.
+ */
+public abstract class SpreadsheetExport extends TableExport {
+
+    private static final long serialVersionUID = 4807393532722461083L;
+
+    /**
+     * The name of the sheet in the workbook the table contents will be written to.
+     */
+    protected String sheetName;
+
+    /**
+     * The title of the "report" of the table contents.
+     */
+    protected String reportTitle;
+
+    /**
+     * The filename of the workbook that will be sent to the user.
+     */
+    protected String exportFileName;
+
+    /**
+     * Flag indicating whether we will add a totals row to the Table. A totals row in the Table is
+     * typically implemented as a footer and therefore is not part of the data source.
+     */
+    protected boolean displayTotals;
+
+    /**
+     * The data formats set per column, for columns whose format is not identified properly by
+     * their type. All other style settings of their cells stay the same.
+     */
+    protected Map<String, String> columnExcelFormatMap = new HashMap<>();
+
+    /**
+     * Instantiates the settings.
+     *
+     * @param tableHolder           the table holder
+     * @param sheetName             the sheet name, "Table Export" if null or empty
+     * @param reportTitle           the report title, none if null
+     * @param exportFileName        the export file name, the default name if null or empty
+     * @param defaultExportFileName the default export file name
+     * @param hasTotalsRow          whether a totals row is added
+     */
+    protected SpreadsheetExport(TableHolder<?> tableHolder, String sheetName, String reportTitle,
+            String exportFileName, String defaultExportFileName, boolean hasTotalsRow) {
+        super(tableHolder);
+        this.sheetName = (null == sheetName || "".equals(sheetName)) ? "Table Export" : sheetName;
+        this.reportTitle = null == reportTitle ? "" : reportTitle;
+        this.exportFileName = (null == exportFileName || "".equals(exportFileName)) ? defaultExportFileName
+                : exportFileName;
+        this.displayTotals = hasTotalsRow;
+    }
+
+    /**
+     * @return whether a report title is set
+     */
+    protected boolean hasReportTitle() {
+        return null != reportTitle && !"".equals(reportTitle);
+    }
+
+    /**
+     * Returns the text of the first cell of the totals row.
+     *
+     * @return the totals row header
+     */
+    protected String getTotalHeader() {
+        return "Total";
+    }
+
+    /**
+     * Determines if the group of rows below the root item is collapsed. By default all groups are
+     * collapsed.
+     *
+     * @param rootId the root item
+     * @return whether the group is collapsed
+     */
+    protected boolean collapseRowGroup(Object rootId) {
+        return true;
+    }
+
+    @Override
+    protected void addFingerprintSettings(ExportFingerprint.Builder builder) {
+        super.addFingerprintSettings(builder);
+        builder.add("sheetName", sheetName)
+                .add("reportTitle", reportTitle)
+                .add("displayTotals", displayTotals)
+                .add("doubleDataFormat", getDoubleDataFormat())
+                .add("integerDataFormat", getIntegerDataFormat())
+                .add("dateDataFormat", getDateDataFormat())
+                .add("columnFormats", new TreeMap<>(columnExcelFormatMap));
+    }
+
+    /**
+     * Gets the sheet name.
+     *
+     * @return the sheet name
+     */
+    public String getSheetName() {
+        return this.sheetName;
+    }
+
+    /**
+     * Gets the report title.
+     *
+     * @return the report title
+     */
+    public String getReportTitle() {
+        return this.reportTitle;
+    }
+
+    /**
+     * Sets the text used for the report title.
+     *
+     * @param reportTitle the new report title
+     */
+    public void setReportTitle(String reportTitle) {
+        this.reportTitle = reportTitle;
+    }
+
+    /**
+     * Gets the export file name.
+     *
+     * @return the export file name
+     */
+    public String getExportFileName() {
+        return this.exportFileName;
+    }
+
+    /**
+     * Sets the export file name.
+     *
+     * @param exportFileName the new export file name
+     */
+    public void setExportFileName(String exportFileName) {
+        this.exportFileName = exportFileName;
+    }
+
+    /**
+     * Flag indicating whether a totals row will be added to the report or not.
+     *
+     * @return true, if totals row will be added
+     */
+    public boolean isDisplayTotals() {
+        return this.displayTotals;
+    }
+
+    /**
+     * Sets the flag indicating whether a totals row will be added to the report or not.
+     *
+     * @param displayTotals boolean
+     */
+    public void setDisplayTotals(boolean displayTotals) {
+        this.displayTotals = displayTotals;
+    }
+
+    /**
+     * Sets the data format of the column's data and totals cells, overriding the format for its
+     * type.
+     *
+     * @param columnId    the column id
+     * @param excelFormat the Excel data format, for example "#,##0.00"
+     */
+    public void setExcelFormatOfColumn(String columnId, String excelFormat) {
+        this.columnExcelFormatMap.put(columnId, excelFormat);
+    }
+
+    /**
+     * @return the Excel data format of floating point columns
+     */
+    public abstract String getDoubleDataFormat();
+
+    /**
+     * Sets the Excel data format of floating point columns, "0.00" by default.
+     *
+     * @param excelDoubleFormat the Excel data format
+     */
+    public abstract void setDoubleDataFormat(String excelDoubleFormat);
+
+    /**
+     * @return the Excel data format of integer columns
+     */
+    public abstract String getIntegerDataFormat();
+
+    /**
+     * Sets the Excel data format of integer and BigDecimal columns, "0" by default.
+     *
+     * @param excelIntegerFormat the Excel data format
+     */
+    public abstract void setIntegerDataFormat(String excelIntegerFormat);
+
+    /**
+     * @return the Excel data format of date columns
+     */
+    public abstract String getDateDataFormat();
+
+    /**
+     * Sets the Excel data format of date columns, "mm/dd/yyyy" by default.
+     *
+     * @param excelDateFormat the Excel data format
+     */
+    public abstract void setDateDataFormat(String excelDateFormat);
+}
@@ -0,0 +1,132 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.StreamResource.StreamSource;
+
+/**
+ * StreamSource writing the export on a separate thread into a bounded buffer the returned stream
+ * reads from. The download starts with the first bytes of the export, and no temporary file is
+ * written for exports that write their format to the stream directly.
+ * <p>
+ * If the export fails, the stream throws an IOException carrying the failure once the bytes
+ * written before it have been read, so the download is aborted instead of ending with a
+ * truncated file. If the stream is closed before the export is complete, for example because the
+ * download was cancelled, the export fails on its next write and its thread ends.
+ */
+public class StreamingExportSource implements StreamSource {
+
+    private static final long serialVersionUID = -5193082614310471126L;
+
+    private static Logger LOGGER = Logger.getLogger(StreamingExportSource.class.getName());
+
+    /**
+     * Writes the export to a stream, see {@link TableExport#exportTo(OutputStream)}.
+     */
+    @FunctionalInterface
+    public interface ExportWriter {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final transient ExportWriter exportWriter;
+    private final int bufferSize;
+    private final transient Executor executor;
+
+    /**
+     * Instantiates a streaming export source with a 64 KiB buffer, running each export on a new
+     * daemon thread.
+     *
+     * @param exportWriter writes the export
+     */
+    public StreamingExportSource(ExportWriter exportWriter) {
+        this(exportWriter, 1 << 16, null);
+    }
+
+    /**
+     * Instantiates a streaming export source.
+     *
+     * @param exportWriter writes the export
+     * @param bufferSize   the number of bytes the export may write ahead of the stream
+     * @param executor     runs the exports, or null to run each export on a new daemon thread
+     */
+    public StreamingExportSource(ExportWriter exportWriter, int bufferSize, Executor executor) {
+        this.exportWriter = exportWriter;
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public InputStream getStream() {
+        ExportPipe pipe = new ExportPipe(bufferSize);
+        PipedOutputStream out;
+        try {
+            out = new PipedOutputStream(pipe);
+        } catch (IOException e) {
+            return null;
+        }
+        Runnable export = () -> {
+            Throwable failure = null;
+            try {
+                OutputStream buffered = new BufferedOutputStream(out, 8192);
+                exportWriter.writeTo(buffered);
+                buffered.flush();
+            } catch (Throwable t) {
+                failure = t;
+                LOGGER.log(Level.WARNING, "Streaming the export failed", t);
+            }
+            // the failure is set before the pipe is closed, so the reader never sees a clean end
+            pipe.failure = failure;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the reader has closed the pipe
+            }
+        };
+        if (null == executor) {
+            Thread thread = new Thread(export, "tableexport-writer");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            executor.execute(export);
+        }
+        return pipe;
+    }
+
+    /**
+     * The read end of the pipe, reporting the failure of the export at its end.
+     */
+    private static class ExportPipe extends PipedInputStream {
+
+        private volatile Throwable failure;
+
+        ExportPipe(int bufferSize) {
+            super(bufferSize);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return checkFailure(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return checkFailure(super.read(b, off, len));
+        }
+
+        private int checkFailure(int result) throws IOException {
+            if (result < 0 && null != failure) {
+                throw new IOException("The export failed", failure);
+            }
+            return result;
+        }
+    }
+}
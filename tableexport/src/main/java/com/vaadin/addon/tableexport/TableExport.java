@@ -1,16 +1,28 @@
 package com.vaadin.addon.tableexport;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public abstract class TableExport implements Serializable {
 
 	private static final long serialVersionUID = -2972527330991334117L;
 
+	private static Logger LOGGER = Logger.getLogger(TableExport.class.getName());
+
 	public static String XLS_MIME_TYPE = "application/vnd.ms-excel";
 	public static String XLSX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
 	public static String CSV_MIME_TYPE = "text/csv";
@@ -22,6 +34,15 @@ public abstract class TableExport implements Serializable {
 
 	protected String mimeType;
 
+	/** The task running the export asynchronously, if any. */
+	private transient volatile ExportTask task;
+
+	/** Creates and deletes the temporary files, the default manager if null. */
+	private transient TempFileManager tempFileManager;
+
+	/** The size up to which export sources hold the export in memory, 0 to always use a file. */
+	private int memoryBufferSize = 0;
+
 	public TableExport(TableHolder<?> tableHolder) {
 		this.tableHolder = tableHolder;
 	}
@@ -40,10 +61,82 @@ public abstract class TableExport implements Serializable {
 		this.tableHolder = tableHolder;
 	}
 
+	/**
+	 * @return the manager of the temporary files of this export
+	 */
+	public TempFileManager getTempFileManager() {
+		return null == tempFileManager ? TempFileManager.getDefault() : tempFileManager;
+	}
+
+	/**
+	 * Sets the manager creating and deleting the temporary files of this export.
+	 *
+	 * @param tempFileManager the manager, or null for the default manager
+	 */
+	public void setTempFileManager(TempFileManager tempFileManager) {
+		this.tempFileManager = tempFileManager;
+	}
+
 	public boolean isHierarchical() {
 		return tableHolder.isHierarchical();
 	}
 
+	/**
+	 * Passes all descendants of the item to the visitor, depth first, together with their depth
+	 * below the item, starting with 1 for its children. The tree is walked with an explicit stack
+	 * of child iterators, so the depth of the tree is not limited by the call stack.
+	 *
+	 * @param rootItem the item
+	 * @param visitor  the visitor
+	 */
+	protected <X> void visitDescendants(X rootItem, ObjIntConsumer<X> visitor) {
+		@SuppressWarnings("unchecked")
+		TableHolder<X> holder = (TableHolder<X>) getTableHolder();
+		Deque<Stream<X>> streams = new ArrayDeque<>();
+		Deque<Iterator<X>> iterators = new ArrayDeque<>();
+		try {
+			Stream<X> children = holder.streamChildren(rootItem);
+			streams.push(children);
+			iterators.push(children.iterator());
+			while (!iterators.isEmpty()) {
+				Iterator<X> iterator = iterators.peek();
+				if (!iterator.hasNext()) {
+					iterators.pop();
+					streams.pop().close();
+					continue;
+				}
+				X child = iterator.next();
+				visitor.accept(child, iterators.size());
+				children = holder.streamChildren(child);
+				streams.push(children);
+				iterators.push(children.iterator());
+			}
+		} finally {
+			while (!streams.isEmpty()) {
+				streams.pop().close();
+			}
+		}
+	}
+
+	/**
+	 * Reports a written data row to the task running the export, if any. Aborts the export with
+	 * a CancellationException if the task has been cancelled. Exports call this for every data
+	 * row they write.
+	 *
+	 * @param topLevel whether the row is one of the items counted by TableHolder.size(), that is
+	 *                 any row of a flat table or a root row of a hierarchical table
+	 */
+	protected void rowExported(boolean topLevel) {
+		ExportTask current = task;
+		if (null != current) {
+			current.rowExported(topLevel);
+		}
+	}
+
+	void setTask(ExportTask task) {
+		this.task = task;
+	}
+
 	public abstract void convertTable();
 
 	public abstract File writeToTempFile();
@@ -59,16 +152,181 @@ public abstract class TableExport implements Serializable {
 	}
 
 	/**
-	 * Create the export source
+	 * Perform the export into a buffer, which holds the export in memory if it is not larger than
+	 * the {@link #setMemoryBufferSize(int) memory buffer size} and in a temporary file otherwise.
+	 * The caller reads the buffer once with {@link ExportBuffer#getStream(Consumer)} or releases
+	 * it. If the export fails, the buffer is released and the converted tables are discarded.
+	 *
+	 * @return buffer with exported data, or null if the export could not be written
+	 */
+	public ExportBuffer exportToBuffer() {
+		ExportBuffer buffer = new ExportBuffer(memoryBufferSize, getTempFileManager());
+		try {
+			exportTo(buffer);
+			buffer.close();
+			return buffer;
+		} catch (IOException e) {
+			LOGGER.warning("Exporting to the buffer failed with IOException " + e);
+			buffer.release();
+			discard();
+			return null;
+		} catch (RuntimeException | Error e) {
+			buffer.release();
+			discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Discards the tables converted since the last write without writing them, releasing their
+	 * temporary files. Called when an export is cancelled or fails.
+	 */
+	public void discard() {
+	}
+
+	/**
+	 * Runs the export asynchronously. The returned task reports the progress of the export and
+	 * can cancel it; the completion callback is invoked on the executor's thread once the export
+	 * has completed, failed or been cancelled.
+	 *
+	 * @param executor     runs the export
+	 * @param onCompletion (optional) callback invoked when the task is done
+	 * @return the task running the export
+	 */
+	public ExportTask exportAsync(Executor executor, Consumer<ExportTask> onCompletion) {
+		return ExportTask.submit(this, executor, onCompletion);
+	}
+
+	/**
+	 * Perform the export into the given stream. The stream is not closed.
+	 *
+	 * @param out the stream to write the exported data to
+	 * @throws IOException if the export could not be written
+	 */
+	public void exportTo(OutputStream out) throws IOException {
+		convertTable();
+		writeTo(out);
+	}
+
+	/**
+	 * Writes the converted table to the given stream, like writeToTempFile() writes it to a file.
+	 * By default the temporary file is written, copied to the stream and deleted; exports that can
+	 * write their format incrementally write to the stream directly.
+	 *
+	 * @param out the stream to write the exported data to
+	 * @throws IOException if the export could not be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTempFileTo(out);
+	}
+
+	/**
+	 * Writes the temporary file with writeToTempFile(), copies it to the stream and deletes it.
+	 *
+	 * @param out the stream to write the exported data to
+	 * @throws IOException if the export could not be written
+	 */
+	protected void writeTempFileTo(OutputStream out) throws IOException {
+		File file = writeToTempFile();
+		if (null == file) {
+			throw new IOException("The export could not be written");
+		}
+		try {
+			Files.copy(file.toPath(), out);
+		} finally {
+			getTempFileManager().release(file);
+		}
+	}
+
+	/**
+	 * Computes the fingerprint of the file the export writes for its table, for caching the file
+	 * with an {@link ExportCache}. The fingerprint covers the export class, the exported columns
+	 * with their headers, types and alignments, the sort order, the settings added by
+	 * {@link #addFingerprintSettings(ExportFingerprint.Builder)} and the given version of the
+	 * data.
+	 * <p>
+	 * The fingerprint does not cover which rows the TableHolder returns, so the data version must
+	 * identify the exact set of exported rows: the filter of the data provider and the scope of
+	 * the user, such as the rows the user is allowed to see, as well as the state of the data. For
+	 * example:
+	 *
+	 * <pre>
+	 * export.getFingerprint(Arrays.asList(userId, filter.toString(), repository.getModificationCount()));
+	 * </pre>
+	 *
+	 * @param dataVersion identifies the exported rows and the state of their data, for example the
+	 *                    filter, the user scope and a modification counter or timestamp; exports of
+	 *                    other rows or changed data must pass a different version
+	 * @return the fingerprint
+	 */
+	public ExportFingerprint getFingerprint(Object dataVersion) {
+		ExportFingerprint.Builder builder = new ExportFingerprint.Builder();
+		builder.add("export", getClass().getName());
+		builder.add("hierarchical", isHierarchical());
+		for (String columnId : getColumnIds()) {
+			builder.add("column", columnId);
+			builder.add("header", tableHolder.getColumnHeader(columnId));
+			builder.add("type", tableHolder.getColumnType(columnId));
+			builder.add("alignment", tableHolder.getCellAlignment(columnId));
+			builder.add("collapsed", tableHolder.isColumnCollapsed(columnId));
+		}
+		builder.add("sort", tableHolder.getSortOrder());
+		addFingerprintSettings(builder);
+		builder.add("dataVersion", dataVersion);
+		return builder.build();
+	}
+
+	/**
+	 * Adds the settings of the export that change the written file, such as titles and formats,
+	 * to its fingerprint. Subclasses adding settings call the super method.
+	 *
+	 * @param builder collects the settings
+	 */
+	protected void addFingerprintSettings(ExportFingerprint.Builder builder) {
+	}
+
+	/**
+	 * Create the export source. With a {@link #setMemoryBufferSize(int) memory buffer size} set,
+	 * exports up to that size are served from memory and the callback receives null instead of
+	 * the temp file.
 	 * 
 	 * @param onCloseCallback (optional) callback invoked after the stream was
 	 *                        closed (just prior to temp file delete)
 	 * @return stream source providing the exported data
 	 */
 	public TemporaryFileStreamSource createExportSource(Consumer<File> onCloseCallback) {
+		if (memoryBufferSize > 0) {
+			return TemporaryFileStreamSource.fromBuffer(this::exportToBuffer, onCloseCallback);
+		}
 		return new TemporaryFileStreamSource(this::exportToTempFile, onCloseCallback);
 	}
 
+	/**
+	 * Create an export source streaming the export as it is written. Each stream runs
+	 * exportTo() on a separate thread, so the first bytes can be sent before the export is
+	 * complete, without a temporary file for the exports that write to the stream directly.
+	 *
+	 * @return stream source providing the exported data
+	 */
+	public StreamingExportSource createStreamingExportSource() {
+		return new StreamingExportSource(this::exportTo);
+	}
+
+	public int getMemoryBufferSize() {
+		return memoryBufferSize;
+	}
+
+	/**
+	 * Sets the size up to which the export sources hold the export in memory instead of writing
+	 * it to a temporary file and reading it back. Larger exports are spilled to a temporary file
+	 * once they grow past this size. Defaults to 0, which always uses a temporary file.
+	 *
+	 * @param memoryBufferSize the size in bytes
+	 */
+	public void setMemoryBufferSize(int memoryBufferSize) {
+		this.memoryBufferSize = memoryBufferSize;
+	}
+
 	public String getMimeType() {
 		return this.mimeType;
 	}
@@ -2,7 +2,12 @@ package com.vaadin.addon.tableexport;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author thomas
@@ -20,9 +25,54 @@ public interface TableHolder<T> extends Serializable {
     Class<?> getColumnType(String columnId);
 
     Object getColumnValue(T item, String columnId);
+
+    /**
+     * Returns the order the items are sorted in, as the ids of the sorted columns followed by
+     * their direction, for example {@code "name ASCENDING"}. Used to fingerprint exports, see
+     * {@link TableExport#getFingerprint(Object)}.
+     */
+    default List<String> getSortOrder() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns a function extracting the value of the given column from an item. Exports resolve
+     * this once per column instead of calling {@link #getColumnValue(Object, String)} per cell.
+     */
+    default Function<T, ?> getColumnValueProvider(String columnId) {
+        return item -> getColumnValue(item, columnId);
+    }
     
     Collection<T> getItems();
 
+    /**
+     * Returns at most {@code limit} items starting from {@code offset}. Used instead of
+     * {@link #getItems()} when {@link #getPageSize()} is greater than 0.
+     */
+    default Collection<T> getItems(int offset, int limit) {
+        return getItems().stream().skip(offset).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the number of items to fetch per page, or 0 to fetch all items at once.
+     */
+    default int getPageSize() {
+        return 0;
+    }
+
+    /**
+     * Returns a lazily populated stream of the items. When {@link #getPageSize()} is greater than
+     * 0 the items are fetched one page at a time while the stream is consumed. The caller must
+     * close the stream so that the underlying data source can release its resources.
+     */
+    default Stream<T> streamItems() {
+        int pageSize = getPageSize();
+        if (pageSize <= 0) {
+            return getItems().stream();
+        }
+        return StreamSupport.stream(new PagedSpliterator<>(this::getItems, pageSize), false);
+    }
+
     int size();
 
     boolean isHierarchical();
@@ -32,5 +82,20 @@ public interface TableHolder<T> extends Serializable {
     Collection<T> getChildren(T rootItem);
     
     Collection<T> getRootItems();
+
+    /**
+     * Returns a lazily populated stream of the children of the given item. The caller must close
+     * the stream.
+     */
+    default Stream<T> streamChildren(T rootItem) {
+        return getChildren(rootItem).stream();
+    }
+
+    /**
+     * Returns a lazily populated stream of the root items. The caller must close the stream.
+     */
+    default Stream<T> streamRootItems() {
+        return getRootItems().stream();
+    }
     
 }
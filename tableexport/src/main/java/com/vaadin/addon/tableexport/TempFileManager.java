@@ -0,0 +1,384 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates and deletes the temporary files of the exports, instead of File.createTempFile() and
+ * File.deleteOnExit(), whose list of files to delete grows with every export in a long running
+ * server.
+ * <p>
+ * The files are created in a configurable directory, for example on tmpfs or a fast local disk,
+ * as long as the files of the manager stay below its disk quota. Each file is deleted once every
+ * holder of a reference has released it: the creator holds the first reference, and
+ * {@link #retain(File)} adds one, for example for a file that is downloaded several times or a
+ * stream reading the file. A background janitor deletes the files still held only by their
+ * creator that were neither modified, retained nor released for longer than the maximum age,
+ * which are left by downloads that were never read, and, once, the files left in the directory
+ * by an earlier run. Files with further references are left to the holders of the references.
+ * <p>
+ * The exports use the {@link #getDefault() default manager} unless one is set with
+ * {@link TableExport#setTempFileManager(TempFileManager)}.
+ */
+public class TempFileManager {
+
+    private static Logger LOGGER = Logger.getLogger(TempFileManager.class.getName());
+
+    private static final String PREFIX = "tableexport-";
+
+    private static volatile TempFileManager defaultManager;
+
+    /* the manager of each file, so streams can release files without knowing their manager */
+    private static final Map<File, TempFileManager> OWNERS = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    private volatile long quotaBytes = Long.MAX_VALUE;
+    private volatile long maxFileAgeMillis = TimeUnit.HOURS.toMillis(1);
+    private volatile long janitorIntervalMillis = TimeUnit.MINUTES.toMillis(5);
+
+    private final Map<File, Usage> references = new HashMap<>();
+    private ScheduledExecutorService janitor;
+    private long createdCount = 0;
+    private long deletedCount = 0;
+    private long orphanCount = 0;
+    private long quotaRejectionCount = 0;
+
+    /**
+     * @return the manager used by exports without a manager of their own, creating files in the
+     *         java.io.tmpdir directory
+     */
+    public static TempFileManager getDefault() {
+        TempFileManager manager = defaultManager;
+        if (null == manager) {
+            synchronized (TempFileManager.class) {
+                if (null == defaultManager) {
+                    defaultManager = new TempFileManager(null);
+                }
+                manager = defaultManager;
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Sets the manager used by exports without a manager of their own.
+     */
+    public static void setDefault(TempFileManager manager) {
+        defaultManager = manager;
+    }
+
+    /**
+     * Releases a reference to the file through the manager that created it, see
+     * {@link #release(File)}. Files not created by a manager are deleted.
+     *
+     * @param file the file
+     */
+    public static void releaseFile(File file) {
+        TempFileManager owner = OWNERS.get(file);
+        if (null == owner) {
+            file.delete();
+        } else {
+            owner.release(file);
+        }
+    }
+
+    /**
+     * Adds a reference to the file through the manager that created it, see
+     * {@link #retain(File)}.
+     *
+     * @param file the file
+     * @return false if the file is not, or no longer, managed by a manager
+     */
+    public static boolean retainFile(File file) {
+        TempFileManager owner = OWNERS.get(file);
+        return null != owner && owner.retain(file);
+    }
+
+    /**
+     * Instantiates a manager.
+     *
+     * @param directory the directory of the temporary files, or null for the java.io.tmpdir
+     *                  directory
+     */
+    public TempFileManager(File directory) {
+        this.directory = null == directory ? new File(System.getProperty("java.io.tmpdir")) : directory;
+    }
+
+    /**
+     * Creates an empty temporary file, holding a reference to it.
+     *
+     * @param suffix the suffix of the file name, such as ".xlsx"
+     * @return the file
+     * @throws IOException if the file could not be created or the quota is used up
+     */
+    public File createTempFile(String suffix) throws IOException {
+        synchronized (this) {
+            startJanitor();
+            if (getUsedBytes() >= quotaBytes) {
+                sweep();
+                if (getUsedBytes() >= quotaBytes) {
+                    quotaRejectionCount++;
+                    throw new IOException("The temporary file quota of " + quotaBytes + " bytes is used up in "
+                            + directory);
+                }
+            }
+        }
+        Files.createDirectories(directory.toPath());
+        File file = Files.createTempFile(directory.toPath(), PREFIX, suffix).toFile();
+        synchronized (this) {
+            references.put(file, new Usage());
+            createdCount++;
+        }
+        OWNERS.put(file, this);
+        return file;
+    }
+
+    /**
+     * Adds a reference to a file of this manager.
+     *
+     * @param file the file
+     * @return false if the file is not, or no longer, managed by this manager
+     */
+    public synchronized boolean retain(File file) {
+        Usage usage = references.get(file);
+        if (null == usage) {
+            return false;
+        }
+        usage.count++;
+        usage.lastUsed = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Releases a reference to a file of this manager, deleting the file once no reference is
+     * left. Files not managed by this manager are deleted.
+     *
+     * @param file the file
+     */
+    public void release(File file) {
+        synchronized (this) {
+            Usage usage = references.get(file);
+            if (null != usage && usage.count > 1) {
+                usage.count--;
+                usage.lastUsed = System.currentTimeMillis();
+                return;
+            }
+            if (null != usage) {
+                references.remove(file);
+                deletedCount++;
+            }
+        }
+        OWNERS.remove(file);
+        file.delete();
+    }
+
+    /**
+     * Hands a file over to the caller, which deletes it itself. The file is no longer counted
+     * against the quota nor deleted by the janitor.
+     *
+     * @param file the file
+     */
+    public void detach(File file) {
+        synchronized (this) {
+            references.remove(file);
+        }
+        OWNERS.remove(file);
+    }
+
+    private void startJanitor() {
+        if (null != janitor) {
+            return;
+        }
+        janitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tableexport-janitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        janitor.execute(this::deleteLeftovers);
+        long interval = janitorIntervalMillis;
+        janitor.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Deleting orphaned temporary files failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the files of an earlier run older than the maximum age.
+     */
+    private void deleteLeftovers() {
+        File[] leftovers = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        if (null == leftovers) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - maxFileAgeMillis;
+        for (File file : leftovers) {
+            boolean managed;
+            synchronized (this) {
+                managed = references.containsKey(file);
+            }
+            if (!managed && file.lastModified() < oldest && file.delete()) {
+                LOGGER.fine("Deleted the leftover temporary file " + file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files held only by their creator that were neither modified, retained nor
+     * released for longer than the maximum age, and forgets the files deleted by others.
+     */
+    public void sweep() {
+        long oldest = System.currentTimeMillis() - maxFileAgeMillis;
+        List<File> orphans = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<File, Usage> entry : new ArrayList<>(references.entrySet())) {
+                File file = entry.getKey();
+                Usage usage = entry.getValue();
+                long modified = file.lastModified();
+                if (modified == 0) {
+                    // deleted by others
+                    references.remove(file);
+                    OWNERS.remove(file);
+                } else if (usage.count == 1 && modified < oldest && usage.lastUsed < oldest) {
+                    references.remove(file);
+                    orphans.add(file);
+                    orphanCount++;
+                    deletedCount++;
+                }
+            }
+        }
+        for (File file : orphans) {
+            OWNERS.remove(file);
+            file.delete();
+        }
+        if (!orphans.isEmpty()) {
+            LOGGER.fine("Deleted " + orphans.size() + " orphaned temporary files, " + this);
+        }
+    }
+
+    /**
+     * Stops the janitor. Files are still created, and the janitor is started again for the next
+     * file.
+     */
+    public synchronized void shutdown() {
+        if (null != janitor) {
+            janitor.shutdownNow();
+            janitor = null;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    /**
+     * Sets the total size of the files of this manager above which no file is created.
+     * Unlimited by default.
+     */
+    public void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    public long getMaxFileAgeMillis() {
+        return maxFileAgeMillis;
+    }
+
+    /**
+     * Sets how long a file held only by its creator may go unmodified and unused before the
+     * janitor deletes it. Defaults to one hour.
+     */
+    public void setMaxFileAgeMillis(long maxFileAgeMillis) {
+        this.maxFileAgeMillis = maxFileAgeMillis;
+    }
+
+    public long getJanitorIntervalMillis() {
+        return janitorIntervalMillis;
+    }
+
+    /**
+     * Sets how often the janitor looks for orphaned files. Defaults to five minutes; takes effect
+     * when the janitor is started.
+     */
+    public void setJanitorIntervalMillis(long janitorIntervalMillis) {
+        this.janitorIntervalMillis = janitorIntervalMillis;
+    }
+
+    /**
+     * @return the number of files of this manager
+     */
+    public synchronized int getFileCount() {
+        return references.size();
+    }
+
+    /**
+     * @return the total size of the files of this manager in bytes
+     */
+    public synchronized long getUsedBytes() {
+        long used = 0;
+        for (File file : references.keySet()) {
+            used += file.length();
+        }
+        return used;
+    }
+
+    /**
+     * @return the number of files created
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return the number of files deleted, including the orphaned files
+     */
+    public synchronized long getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * @return the number of orphaned files deleted by the janitor
+     */
+    public synchronized long getOrphanCount() {
+        return orphanCount;
+    }
+
+    /**
+     * @return the number of files not created because the quota was used up
+     */
+    public synchronized long getQuotaRejectionCount() {
+        return quotaRejectionCount;
+    }
+
+    /**
+     * The references to a file and when a reference was last added or released.
+     */
+    private static final class Usage {
+        private int count = 1;
+        private long lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TempFileManager[" + directory + ", files=" + references.size() + ", bytes=" + getUsedBytes()
+                + ", created=" + createdCount + ", deleted=" + deletedCount + ", orphans=" + orphanCount
+                + ", quotaRejections=" + quotaRejectionCount + "]";
+    }
+}
@@ -20,7 +20,9 @@ public class TemporaryFileStreamSource implements StreamSource {
      *  Made it transient per: https://github.com/jnash67/tableexport-for-vaadin/issues/28
      */
     private final transient Supplier<File> fileProducer;
+    private final transient Supplier<ExportBuffer> bufferProducer;
     private final transient Consumer<File> onCloseCallback;
+    private final boolean deleteOnClose;
 
     /**
      * Instantiates a new file stream resource.
@@ -38,15 +40,73 @@ public class TemporaryFileStreamSource implements StreamSource {
   	 * @param onCloseCallback callback invoked after the stream was closed (just prior to file delete)
      */
     public TemporaryFileStreamSource(Supplier<File> fileProducer, Consumer<File> onCloseCallback) {
+        this(fileProducer, onCloseCallback, true);
+    }
+
+    /**
+     * Instantiates a new file stream resource, which deletes the file after it has been read only
+     * if asked to. Files shared between downloads, such as cached exports, are not deleted.
+     * 
+     * @param fileProducer the file to download
+     * @param onCloseCallback callback invoked after the stream was closed
+     * @param deleteOnClose whether the file is deleted after the stream was closed
+     */
+    public TemporaryFileStreamSource(Supplier<File> fileProducer, Consumer<File> onCloseCallback,
+            boolean deleteOnClose) {
+        this(fileProducer, null, onCloseCallback, deleteOnClose);
+    }
+
+    private TemporaryFileStreamSource(Supplier<File> fileProducer, Supplier<ExportBuffer> bufferProducer,
+            Consumer<File> onCloseCallback, boolean deleteOnClose) {
         this.fileProducer = fileProducer;
+        this.bufferProducer = bufferProducer;
         this.onCloseCallback = onCloseCallback;
+        this.deleteOnClose = deleteOnClose;
+    }
+
+    /**
+     * Creates a stream source serving exports written to an {@link ExportBuffer}, from memory when
+     * the export is held in memory and from its file otherwise. The buffer is released once the
+     * stream is closed.
+     * 
+     * @param bufferProducer the buffer to download
+     * @param onCloseCallback callback invoked after the stream was closed, with the file of the
+     *            buffer or null if the buffer was held in memory
+     * @return the stream source
+     */
+    public static TemporaryFileStreamSource fromBuffer(Supplier<ExportBuffer> bufferProducer,
+            Consumer<File> onCloseCallback) {
+        return new TemporaryFileStreamSource(null, bufferProducer, onCloseCallback, true);
     }
 
     @Override
     public InputStream getStream() {
+        if (null != bufferProducer) {
+            ExportBuffer buffer = bufferProducer.get();
+            if (null == buffer) {
+                return null;
+            }
+            try {
+                return buffer.getStream(onCloseCallback);
+            } catch (FileNotFoundException e) {
+                buffer.release();
+                return null;
+            }
+        }
+        File file = fileProducer.get();
+        if (null == file) {
+            return null;
+        }
         try {
-			return new DeletingFileInputStream(fileProducer.get(), onCloseCallback);
+			return new DeletingFileInputStream(file, onCloseCallback, deleteOnClose);
 		} catch (FileNotFoundException e) {
+			// end the read the stream would have ended, such as the read of a cached file
+			if (null != onCloseCallback) {
+				onCloseCallback.accept(file);
+			}
+			if (deleteOnClose) {
+				TempFileManager.releaseFile(file);
+			}
 			return null;
 		}
     }
@@ -0,0 +1,569 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.DimensionsRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.GutsRecord;
+import org.apache.poi.hssf.record.IndexRecord;
+import org.apache.poi.hssf.record.common.UnicodeString;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.util.LittleEndian;
+
+import com.vaadin.ui.Grid;
+
+/**
+ * Exports tables to .xls files without holding their rows in memory. The workbook globals, the
+ * styles and the sheet settings are kept in the {@link HSSFWorkbook} as usual, so the styles, data
+ * formats, column widths and print settings of {@link ExcelExport} all apply. The rows however are
+ * not added to the workbook: their ROW and cell records are written to a spool file per sheet, in
+ * blocks of 32 rows, and spliced into the sheet's records when the workbook is written into the
+ * compound document. The heap used stays flat up to the 65,536 rows of an .xls sheet.
+ * <p>
+ * Since no row or cell objects exist, the hooks of ExcelExport that receive them, such as
+ * {@link #addDataRow(Sheet, Object, int)} and {@link #setupTotalCell}, are not called, and
+ * {@link #getTitleRow()}, {@link #getHeaderRow()} and {@link #getTotalsRow()} return null. Values
+ * are written by the type of their column like the cell writers of ExcelExport write them; columns
+ * with a registered cell writer are written into a scratch cell that is read back. The column
+ * widths can only be estimated, see {@link EstimatedColumnWidthStrategy}.
+ * <p>
+ * Texts are written as LABEL records unless a shared string dictionary size is set, in which case
+ * up to that many distinct texts are written once to the shared string table and referenced from
+ * their cells.
+ */
+public class XlsExport extends ExcelExport {
+
+    private static final long serialVersionUID = 6480871305248931706L;
+
+    private static Logger LOGGER = Logger.getLogger(XlsExport.class.getName());
+
+    private static final int TITLE_HEIGHT = 45, HEADER_HEIGHT = 40, TOTALS_HEIGHT = 30;
+
+    /**
+     * Maximum number of distinct texts written to the shared string table, 0 to write all texts
+     * as LABEL records.
+     */
+    protected int sharedStringDictionarySize = 0;
+
+    /** The spooled rows of each converted sheet, until writeToTempFile(). */
+    private transient Map<Sheet, BiffSheetWriter> spools;
+    private transient IOException failure;
+    private transient Map<String, Integer> sharedStringIndices;
+
+    /* state of the sheet being written */
+    private transient BiffSheetWriter writer;
+    private transient boolean[] numericColumns;
+    private transient CellWriters.ValueKind[] valueKinds;
+    private transient ScratchCell scratchCell;
+    private transient int[] dataStyles;
+    private transient int maxOutlineLevel;
+    private transient boolean markNextRowCollapsed;
+
+    public XlsExport(Grid<?> grid) {
+        super(grid);
+    }
+
+    public XlsExport(Grid<?> grid, String sheetName) {
+        super(grid, sheetName);
+    }
+
+    public XlsExport(Grid<?> grid, String sheetName, String reportTitle) {
+        super(grid, sheetName, reportTitle);
+    }
+
+    public XlsExport(Grid<?> grid, String sheetName, String reportTitle, String exportFileName) {
+        super(grid, sheetName, reportTitle, exportFileName);
+    }
+
+    public XlsExport(Grid<?> grid, String sheetName, String reportTitle, String exportFileName,
+            boolean hasTotalsRow) {
+        super(grid, sheetName, reportTitle, exportFileName, hasTotalsRow);
+    }
+
+    public XlsExport(TableHolder<?> tableHolder) {
+        super(tableHolder);
+    }
+
+    public XlsExport(TableHolder<?> tableHolder, String sheetName) {
+        super(tableHolder, sheetName);
+    }
+
+    public XlsExport(TableHolder<?> tableHolder, String sheetName, String reportTitle) {
+        super(tableHolder, sheetName, reportTitle);
+    }
+
+    public XlsExport(TableHolder<?> tableHolder, String sheetName, String reportTitle, String exportFileName) {
+        super(tableHolder, sheetName, reportTitle, exportFileName);
+    }
+
+    public XlsExport(TableHolder<?> tableHolder, String sheetName, String reportTitle, String exportFileName,
+            boolean hasTotalsRow) {
+        super(tableHolder, sheetName, reportTitle, exportFileName, hasTotalsRow);
+    }
+
+    /**
+     * Sets the maximum number of distinct texts written once to the shared string table and
+     * referenced from their cells. Further texts are written as LABEL records, which repeat the
+     * text in every cell, so the dictionary makes files with repetitive text columns smaller.
+     *
+     * @param sharedStringDictionarySize the dictionary size, or 0 to write all texts as LABEL
+     *                                   records
+     */
+    public void setSharedStringDictionarySize(int sharedStringDictionarySize) {
+        this.sharedStringDictionarySize = sharedStringDictionarySize;
+    }
+
+    /**
+     * Spools the rows of the table for the current sheet.
+     */
+    @Override
+    public void convertTable() {
+        if (null != failure) {
+            return;
+        }
+        if (null == spools) {
+            spools = new IdentityHashMap<>();
+            sharedStringIndices = new HashMap<>();
+        }
+        try {
+            writer = new BiffSheetWriter(getTempFileManager().createTempFile(".xls"), this::sharedStringIndex);
+            BiffSheetWriter previous = spools.put(sheet, writer);
+            if (null != previous) {
+                getTempFileManager().release(previous.getFile());
+            }
+            try {
+                writeSheet();
+            } finally {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (UncheckedIOException e) {
+            failure = e.getCause();
+        }
+    }
+
+    private void writeSheet() throws IOException {
+        initialSheetSetup();
+        boolean hasTitle = (null != reportTitle) && !"".equals(reportTitle);
+        int startRow = hasTitle ? 1 : 0;
+
+        columnPlan = compileColumnPlan(startRow);
+        columnWidthStrategy.start(sheet, columnPlan);
+        columnTotals = displayTotals ? new ColumnTotals(columnPlan) : null;
+        int size = columnPlan.size();
+        numericColumns = new boolean[size];
+        valueKinds = new CellWriters.ValueKind[size];
+        dataStyles = new int[size];
+        for (int col = 0; col < size; col++) {
+            numericColumns[col] = isNumeric(columnPlan.getType(col));
+            valueKinds[col] = getValueKind(columnPlan, col);
+            if (valueKinds[col] == CellWriters.ValueKind.CUSTOM && null == scratchCell) {
+                scratchCell = new ScratchCell();
+            }
+            dataStyles[col] = columnPlan.getDataStyle(col).getIndex();
+        }
+        maxOutlineLevel = 0;
+        markNextRowCollapsed = false;
+
+        if (hasTitle) {
+            writeTitleRow();
+        }
+        writeHeaderRow(startRow);
+        int row = startRow + 1;
+        if (isHierarchical()) {
+            row = writeHierarchicalRows(row);
+        } else {
+            try (Stream<?> items = prefetch(getTableHolder().streamItems())) {
+                Iterator<?> iterator = items.iterator();
+                while (iterator.hasNext()) {
+                    writeDataRow(iterator.next(), row++, 0, false, true);
+                }
+            }
+        }
+        if (displayTotals) {
+            writeTotalsRow(row, startRow);
+        } else if (markNextRowCollapsed) {
+            writer.startRow(row, 0, 0, false, takeCollapsedMark());
+        }
+        finalSheetFormat();
+    }
+
+    private void writeTitleRow() throws IOException {
+        int firstCol = rowHeaders ? 1 : 0;
+        int lastCol = columnPlan.size() - 1;
+        int style = titleCellStyle.getIndex();
+        writer.startRow(0, TITLE_HEIGHT, 0, false, false);
+        writer.writeString(firstCol, style, reportTitle);
+        if (lastCol > firstCol) {
+            sheet.addMergedRegion(new CellRangeAddress(0, 0, firstCol, lastCol));
+            // borders of merged ranges are drawn from the cells along the range
+            if (hasBorder(titleCellStyle)) {
+                for (int col = firstCol + 1; col <= lastCol; col++) {
+                    writer.writeBlank(col, style);
+                }
+            }
+        }
+    }
+
+    private static boolean hasBorder(CellStyle style) {
+        return style.getBorderLeft() != BorderStyle.NONE || style.getBorderRight() != BorderStyle.NONE
+                || style.getBorderTop() != BorderStyle.NONE || style.getBorderBottom() != BorderStyle.NONE;
+    }
+
+    private void writeHeaderRow(int row) throws IOException {
+        writer.startRow(row, HEADER_HEIGHT, 0, false, false);
+        for (int col = 0; col < columnPlan.size(); col++) {
+            String header = getTableHolder().getColumnHeader(columnPlan.getColumnId(col)).toString();
+            columnWidthStrategy.measure(col, header);
+            writer.writeString(col, columnPlan.getHeaderStyle(col).getIndex(), header);
+        }
+    }
+
+    private int writeHierarchicalRows(int firstRow) {
+        sheet.setRowSumsBelow(false);
+        int[] row = { firstRow };
+        try (Stream<?> roots = prefetch(streamRootItems())) {
+            Iterator<?> iterator = roots.iterator();
+            while (iterator.hasNext()) {
+                Object root = iterator.next();
+                boolean collapse = collapseRowGroup(root);
+                int rootRow = row[0];
+                writeDataRow(root, row[0]++, 0, false, true);
+                // the root items contain the totals of their children, so only they are summed
+                visitDescendants(root, (child, depth) -> writeDataRow(child, row[0]++, depth, collapse, false));
+                if (collapse && row[0] > rootRow + 1) {
+                    markNextRowCollapsed = true;
+                }
+            }
+        }
+        return row[0];
+    }
+
+    private void writeDataRow(Object item, int row, int level, boolean hidden, boolean totalled) {
+        try {
+            int outlineLevel = Math.min(level, RowOutline.MAX_LEVEL);
+            maxOutlineLevel = Math.max(maxOutlineLevel, outlineLevel);
+            writer.startRow(row, 0, outlineLevel, hidden && level > 0, takeCollapsedMark());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ColumnPlan plan = columnPlan;
+        boolean measuring = columnWidthStrategy.isMeasuring();
+        for (int col = 0; col < plan.size(); col++) {
+            Object value = plan.getValue(col, item);
+            if (measuring) {
+                columnWidthStrategy.measure(col, value);
+            }
+            if (totalled && null != columnTotals) {
+                columnTotals.add(col, value);
+            }
+            writeValue(col, dataStyles[col], value);
+        }
+        if (measuring) {
+            columnWidthStrategy.endRow();
+        }
+        rowExported(totalled);
+    }
+
+    private boolean takeCollapsedMark() {
+        boolean collapsed = markNextRowCollapsed;
+        markNextRowCollapsed = false;
+        return collapsed;
+    }
+
+    private void writeValue(int col, int style, Object value) {
+        CellWriters.ValueKind kind = valueKinds[col];
+        if (kind == CellWriters.ValueKind.CUSTOM) {
+            writeCell(col, style, value);
+            return;
+        }
+        if (null == value) {
+            writer.writeBlank(col, style);
+            return;
+        }
+        switch (kind) {
+        case NUMBER:
+            if (value instanceof Number) {
+                writer.writeNumber(col, style, ((Number) value).doubleValue());
+            } else {
+                try {
+                    writer.writeNumber(col, style, Double.parseDouble(value.toString()));
+                } catch (NumberFormatException nfe) {
+                    writer.writeString(col, style, value.toString());
+                }
+            }
+            break;
+        case BOOLEAN:
+            if (value instanceof Boolean) {
+                writer.writeBoolean(col, style, (Boolean) value);
+            } else {
+                writer.writeString(col, style, value.toString());
+            }
+            break;
+        case DATE:
+            double serial = cellWriters.toDateSerial(columnPlan.getType(col), value);
+            if (serial != ExcelDateSerials.INVALID) {
+                writer.writeNumber(col, style, serial);
+            } else {
+                writer.writeString(col, style, value.toString());
+            }
+            break;
+        default:
+            writer.writeString(col, style, value.toString());
+        }
+    }
+
+    /**
+     * Writes the value into the scratch cell like into a data cell and writes what was written.
+     */
+    private void writeCell(int col, int style, Object value) {
+        Cell cell = scratchCell.blank();
+        writeCellValue(cell, columnPlan, col, value);
+        switch (cell.getCellType()) {
+        case NUMERIC:
+            writer.writeNumber(col, style, cell.getNumericCellValue());
+            break;
+        case STRING:
+            writer.writeString(col, style, cell.getStringCellValue());
+            break;
+        case BOOLEAN:
+            writer.writeBoolean(col, style, cell.getBooleanCellValue());
+            break;
+        default:
+            writer.writeBlank(col, style);
+        }
+    }
+
+    private void writeTotalsRow(int currentRow, int startRow) throws IOException {
+        writer.startRow(currentRow, TOTALS_HEIGHT, 0, false, takeCollapsedMark());
+        for (int col = 0; col < columnPlan.size(); col++) {
+            int style = columnPlan.getTotalsStyle(col).getIndex();
+            if (numericColumns[col]) {
+                if (isHierarchical()) {
+                    // a SUM over the sheet would double count the children that are summed in their
+                    // root rows, so the total of the root rows is written as a value
+                    writer.writeNumber(col, style, columnTotals.getSum(col));
+                } else {
+                    CellRangeAddress cra = new CellRangeAddress(startRow, currentRow - 1, col, col);
+                    FormulaRecord formula = new FormulaRecord();
+                    formula.setRow(currentRow);
+                    formula.setColumn((short) col);
+                    formula.setXFIndex((short) style);
+                    formula.setParsedExpression(
+                            HSSFFormulaParser.parse("SUM(" + cra.formatAsString() + ")", (HSSFWorkbook) workbook));
+                    formula.setValue(columnTotals.getSum(col));
+                    writer.writeRecord(col, formula.serialize());
+                }
+            } else if (0 == col) {
+                writer.writeString(col, style, getTotalHeader());
+            } else {
+                writer.writeBlank(col, style);
+            }
+        }
+    }
+
+    @Override
+    protected void finalSheetFormat() {
+        super.finalSheetFormat();
+        if (maxOutlineLevel > 0) {
+            // the outline gutter, which HSSFSheet.groupRow() would recalculate from the row records
+            GutsRecord guts = (GutsRecord) ((HSSFSheet) sheet).getSheet().findFirstRecordBySid(GutsRecord.sid);
+            guts.setRowLevelMax((short) (maxOutlineLevel + 1));
+            guts.setLeftRowGutter((short) (29 + 12 * maxOutlineLevel));
+        }
+    }
+
+    /**
+     * Returns the index of the text in the shared string table, adding it if the dictionary has
+     * room, or -1 if the text is written as a LABEL record. Texts too long for a LABEL record are
+     * always added.
+     */
+    private int sharedStringIndex(String text) {
+        Integer index = sharedStringIndices.get(text);
+        if (null != index) {
+            return index;
+        }
+        boolean room = sharedStringIndices.size() < sharedStringDictionarySize;
+        if (!room && BiffSheetWriter.fitsLabel(text)) {
+            return -1;
+        }
+        int added = ((HSSFWorkbook) workbook).getInternalWorkbook().addSSTString(new UnicodeString(text));
+        if (room) {
+            sharedStringIndices.put(text, added);
+        }
+        return added;
+    }
+
+    @Override
+    public File writeToTempFile() {
+        if (null == mimeType) {
+            setMimeType(XLS_MIME_TYPE);
+        }
+        Map<Sheet, BiffSheetWriter> sheets = null == spools ? Collections.emptyMap() : spools;
+        IOException error = failure;
+        spools = null;
+        failure = null;
+        sharedStringIndices = null;
+        File tempFile = null;
+        try {
+            if (null != error) {
+                throw error;
+            }
+            tempFile = getTempFileManager().createTempFile(".xls");
+            writeWorkbook(tempFile, sheets);
+            return tempFile;
+        } catch (IOException e) {
+            LOGGER.warning("Converting to XLS failed with IOException " + e);
+            if (null != tempFile) {
+                getTempFileManager().release(tempFile);
+            }
+            return null;
+        } finally {
+            for (BiffSheetWriter spool : sheets.values()) {
+                getTempFileManager().release(spool.getFile());
+            }
+        }
+    }
+
+    /**
+     * Deletes the spooled rows of the converted sheets.
+     */
+    @Override
+    public void discard() {
+        if (null != spools) {
+            for (BiffSheetWriter spool : spools.values()) {
+                getTempFileManager().release(spool.getFile());
+            }
+        }
+        spools = null;
+        failure = null;
+        sharedStringIndices = null;
+        super.discard();
+    }
+
+    /**
+     * Copies the file written by writeToTempFile() to the stream, since the workbook globals,
+     * which precede the rows, are only complete once all rows have been spooled.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        writeTempFileTo(out);
+    }
+
+    /**
+     * Writes the workbook stream, the records of the workbook with the spooled rows of each sheet
+     * placed after its DIMENSIONS record, into a new compound document file.
+     */
+    private void writeWorkbook(File file, Map<Sheet, BiffSheetWriter> sheets) throws IOException {
+        HSSFWorkbook hssfWorkbook = (HSSFWorkbook) workbook;
+        byte[] records = hssfWorkbook.getBytes();
+        List<Integer> boundSheets = new ArrayList<>();
+        int globalsEnd = 0;
+        for (int offset = 0; globalsEnd == 0; offset = nextRecord(records, offset)) {
+            short sid = LittleEndian.getShort(records, offset);
+            if (sid == BoundSheetRecord.sid) {
+                boundSheets.add(offset + 4);
+            } else if (sid == EOFRecord.sid) {
+                globalsEnd = nextRecord(records, offset);
+            }
+        }
+
+        List<InputStream> parts = new ArrayList<>();
+        parts.add(new ByteArrayInputStream(records, 0, globalsEnd));
+        int oldStart = globalsEnd;
+        int newStart = globalsEnd;
+        for (int i = 0; i < hssfWorkbook.getNumberOfSheets(); i++) {
+            int oldEnd = endOfSheet(records, oldStart);
+            LittleEndian.putInt(records, boundSheets.get(i), newStart);
+            BiffSheetWriter spool = sheets.get(hssfWorkbook.getSheetAt(i));
+            if (null == spool) {
+                parts.add(new ByteArrayInputStream(records, oldStart, oldEnd - oldStart));
+                newStart += oldEnd - oldStart;
+                oldStart = oldEnd;
+                continue;
+            }
+            // the INDEX record follows the BOF record and precedes the DIMENSIONS record
+            int index = nextRecord(records, oldStart);
+            int indexEnd = LittleEndian.getShort(records, index) == IndexRecord.sid ? nextRecord(records, index)
+                    : index;
+            int dimensions = indexEnd;
+            while (LittleEndian.getShort(records, dimensions) != DimensionsRecord.sid) {
+                dimensions = nextRecord(records, dimensions);
+            }
+            int dimensionsEnd = nextRecord(records, dimensions);
+            LittleEndian.putInt(records, dimensions + 4, 0);
+            LittleEndian.putInt(records, dimensions + 8, spool.getRowCount());
+            LittleEndian.putShort(records, dimensions + 12, (short) 0);
+            LittleEndian.putShort(records, dimensions + 14, (short) spool.getColumnCount());
+
+            long[] blocks = spool.getBlockOffsets();
+            byte[] indexRecord = new byte[20 + 4 * blocks.length];
+            int rowsStart = newStart + (index - oldStart) + indexRecord.length + (dimensionsEnd - indexEnd);
+            LittleEndian.putShort(indexRecord, 0, IndexRecord.sid);
+            LittleEndian.putShort(indexRecord, 2, (short) (indexRecord.length - 4));
+            LittleEndian.putInt(indexRecord, 8, 0);
+            LittleEndian.putInt(indexRecord, 12, spool.getRowCount());
+            for (int block = 0; block < blocks.length; block++) {
+                LittleEndian.putInt(indexRecord, 20 + 4 * block, (int) (rowsStart + blocks[block]));
+            }
+
+            parts.add(new ByteArrayInputStream(records, oldStart, index - oldStart));
+            parts.add(new ByteArrayInputStream(indexRecord));
+            parts.add(new ByteArrayInputStream(records, indexEnd, dimensionsEnd - indexEnd));
+            parts.add(new FileInputStream(spool.getFile()));
+            parts.add(new ByteArrayInputStream(records, dimensionsEnd, oldEnd - dimensionsEnd));
+            newStart = rowsStart + (int) spool.getLength() + (oldEnd - dimensionsEnd);
+            oldStart = oldEnd;
+        }
+
+        try (InputStream in = new SequenceInputStream(Collections.enumeration(parts));
+                POIFSFileSystem fs = POIFSFileSystem.create(file)) {
+            fs.createDocument(in, "Workbook");
+            fs.writeFilesystem();
+        }
+    }
+
+    private static int nextRecord(byte[] records, int offset) {
+        return offset + 4 + LittleEndian.getUShort(records, offset + 2);
+    }
+
+    private static int endOfSheet(byte[] records, int start) {
+        int offset = start;
+        if (LittleEndian.getShort(records, offset) != BOFRecord.sid) {
+            throw new IllegalStateException("Sheet does not start with a BOF record");
+        }
+        while (LittleEndian.getShort(records, offset) != EOFRecord.sid) {
+            offset = nextRecord(records, offset);
+        }
+        return nextRecord(records, offset);
+    }
+}
@@ -0,0 +1,841 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.WorkbookUtil;
+
+import com.vaadin.ui.Grid;
+
+/**
+ * Exports tables to .xlsx files by writing the SpreadsheetML parts straight to a zip file,
+ * without the POI usermodel. No row, cell or style objects are created: each row is written as it
+ * is read from the table holder, through a reusable character buffer, with the cell styles
+ * resolved to style indices once per column.
+ * <p>
+ * Supports the report title, the column headers, the totals row and the data formats of
+ * {@link ExcelExport}, with its default styles, as well as hierarchical tables, whose rows are
+ * outlined below their root rows. The values are written by the type of their column like the
+ * cell writers of ExcelExport write them; columns with a writer registered with
+ * {@link #setCellWriter(Class, CellWriter)} are written into a scratch cell that is read back. The column widths are estimated from the header and the first
+ * rows. Further tables can be added as sheets of the same workbook with
+ * {@link #setNextTableHolder(TableHolder, String)}.
+ */
+public class XlsxExport extends SpreadsheetExport {
+
+    private static final long serialVersionUID = -3562109475582135247L;
+
+    private static Logger LOGGER = Logger.getLogger(XlsxExport.class.getName());
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final int TITLE_FONT = 1, HEADER_FONT = 2;
+    private static final int HEADER_FILL = 2, TOTALS_FILL = 3;
+    private static final int THIN_BORDER = 1;
+    private static final int FIRST_CUSTOM_FORMAT = 164;
+
+    protected String doubleDataFormat = "0.00";
+    protected String integerDataFormat = "0";
+    protected String dateDataFormat = "mm/dd/yyyy";
+
+    /**
+     * The writers the cell values are written like, by column type.
+     */
+    protected CellWriters cellWriters = new CellWriters();
+
+    private int widthSampleRows = 100;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The file the workbook is written to, from the first convertTable() until writeToTempFile(). */
+    private transient File xlsxFile;
+    private transient ZipOutputStream zip;
+    private transient Writer zipWriter;
+    private transient IOException failure;
+
+    private transient List<String> sheetNames;
+    private transient Map<String, Integer> numberFormats;
+    private transient Map<String, Integer> cellFormats;
+
+    /* state of the sheet being written */
+    private transient XmlCharBuffer out;
+    private transient ColumnPlan plan;
+    private transient char[][] columnLetters;
+    private transient int[] dataStyles, headerStyles, totalsStyles;
+    private transient boolean[] numericColumns;
+    private transient CellWriters.ValueKind[] valueKinds;
+    private transient ScratchCell scratchCell;
+    private transient ColumnTotals columnTotals;
+    private transient EstimatedColumnWidthStrategy widths;
+    /** Whether the widths are measured while the rows are written, for spooled sheets. */
+    private transient boolean measureRows;
+    private transient int maxOutlineLevel;
+    private transient boolean markNextRowCollapsed;
+
+    public XlsxExport(Grid<?> grid) {
+        this(new DefaultGridHolder<>(grid));
+    }
+
+    public XlsxExport(Grid<?> grid, String sheetName, String reportTitle, String exportFileName,
+            boolean hasTotalsRow) {
+        this(new DefaultGridHolder<>(grid), sheetName, reportTitle, exportFileName, hasTotalsRow);
+    }
+
+    public XlsxExport(TableHolder<?> tableHolder) {
+        this(tableHolder, null, null, null, true);
+    }
+
+    public XlsxExport(TableHolder<?> tableHolder, String sheetName, String reportTitle, String exportFileName,
+            boolean hasTotalsRow) {
+        super(tableHolder, sheetName, reportTitle, exportFileName, "Table-Export.xlsx", hasTotalsRow);
+    }
+
+    /**
+     * Sets the table holder and sheet name for the next convertTable() call, which adds the table
+     * as a further sheet to the workbook.
+     *
+     * @param tableHolder the table holder
+     * @param sheetName   the sheet name
+     */
+    public void setNextTableHolder(TableHolder<?> tableHolder, String sheetName) {
+        setTableHolder(tableHolder);
+        this.sheetName = sheetName;
+    }
+
+    /**
+     * Writes the table as a sheet of the workbook.
+     */
+    @Override
+    public void convertTable() {
+        if (null != failure) {
+            return;
+        }
+        try {
+            if (null == zip) {
+                startWorkbook();
+            }
+            String name = uniqueSheetName(WorkbookUtil.createSafeSheetName(sheetName));
+            sheetNames.add(name);
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheetNames.size() + ".xml"));
+            writeSheet();
+            zipWriter.flush();
+            zip.closeEntry();
+        } catch (IOException e) {
+            failure = e;
+        } catch (UncheckedIOException e) {
+            failure = e.getCause();
+        }
+    }
+
+    private void startWorkbook() throws IOException {
+        xlsxFile = getTempFileManager().createTempFile(".xlsx");
+        startWorkbook(new FileOutputStream(xlsxFile));
+    }
+
+    private void startWorkbook(OutputStream out) {
+        zip = new ZipOutputStream(new BufferedOutputStream(out, 1 << 16));
+        zip.setLevel(compressionLevel);
+        zipWriter = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        sheetNames = new ArrayList<>();
+        numberFormats = new LinkedHashMap<>();
+        cellFormats = new LinkedHashMap<>();
+        // the default cell format
+        cellFormat(0, 0, 0, 0, null, false, false);
+    }
+
+    private String uniqueSheetName(String name) {
+        String unique = name;
+        for (int i = 2; containsIgnoreCase(sheetNames, unique); i++) {
+            String suffix = " (" + i + ")";
+            unique = name.substring(0, Math.min(name.length(), 31 - suffix.length())) + suffix;
+        }
+        return unique;
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeSheet() throws IOException {
+        boolean hasTitle = hasReportTitle();
+        int headerRow = hasTitle ? 1 : 0;
+        compileColumns();
+
+        if (isHierarchical()) {
+            // the outline depth is only known after all rows, so the rows are spooled first
+            File spool = getTempFileManager().createTempFile(".xml");
+            try {
+                try (Writer spoolWriter = new OutputStreamWriter(
+                        new BufferedOutputStream(new FileOutputStream(spool), 1 << 16), StandardCharsets.UTF_8)) {
+                    out = new XmlCharBuffer(spoolWriter, 1 << 14);
+                    int row = writeHierarchicalRows(headerRow + 1);
+                    writeTotalsRow(headerRow, row);
+                    out.flush();
+                }
+                out = new XmlCharBuffer(zipWriter, 1 << 14);
+                writeSheetStart(hasTitle, headerRow);
+                out.flush();
+                try (Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(spool)),
+                        StandardCharsets.UTF_8)) {
+                    char[] chars = new char[1 << 14];
+                    for (int n; (n = reader.read(chars)) > 0;) {
+                        zipWriter.write(chars, 0, n);
+                    }
+                }
+            } finally {
+                getTempFileManager().release(spool);
+            }
+        } else {
+            out = new XmlCharBuffer(zipWriter, 1 << 14);
+            try (Stream<?> items = getTableHolder().streamItems()) {
+                Iterator<?> iterator = items.iterator();
+                // the column widths precede the rows, so they are estimated from the first rows
+                List<Object> sample = new ArrayList<>();
+                while (widths.isMeasuring() && iterator.hasNext()) {
+                    Object item = iterator.next();
+                    sample.add(item);
+                    for (int col = 0; col < plan.size(); col++) {
+                        widths.measure(col, plan.getValue(col, item));
+                    }
+                    widths.endRow();
+                }
+                writeSheetStart(hasTitle, headerRow);
+                int row = headerRow + 1;
+                for (Object item : sample) {
+                    writeRow(item, row++, 0, false, true);
+                }
+                sample = null;
+                while (iterator.hasNext()) {
+                    writeRow(iterator.next(), row++, 0, false, true);
+                }
+                writeTotalsRow(headerRow, row);
+            }
+        }
+        writeSheetEnd(hasTitle);
+        out.flush();
+        out = null;
+    }
+
+    /**
+     * Resolves the values, styles and formats of the exported columns.
+     */
+    private void compileColumns() {
+        TableHolder<?> holder = getTableHolder();
+        cellWriters.setDateSerials(new ExcelDateSerials(false, ZoneId.systemDefault()));
+        plan = new ColumnPlan(holder, getColumnIds(), cellWriters, (columnId, col, alignment) -> null,
+                (columnId, col, alignment) -> null, (columnId, col, alignment) -> null);
+        int size = plan.size();
+        columnLetters = new char[size][];
+        dataStyles = new int[size];
+        headerStyles = new int[size];
+        totalsStyles = new int[size];
+        numericColumns = new boolean[size];
+        valueKinds = new CellWriters.ValueKind[size];
+        Class<?>[] types = new Class<?>[size];
+        String[] formats = new String[size];
+        for (int col = 0; col < size; col++) {
+            String columnId = plan.getColumnId(col);
+            Class<?> type = plan.getType(col);
+            HorizontalAlignment alignment = plan.getAlignment(col);
+            columnLetters[col] = CellReference.convertNumToColString(col).toCharArray();
+            numericColumns[col] = ExcelExport.isNumeric(type);
+            valueKinds[col] = plan.getValueKind(col);
+            if (valueKinds[col] == CellWriters.ValueKind.CUSTOM && null == scratchCell) {
+                scratchCell = new ScratchCell();
+            }
+            types[col] = type;
+            formats[col] = getDataFormat(columnId, type);
+            dataStyles[col] = cellFormat(numberFormat(formats[col]), 0, 0, THIN_BORDER, alignment, false, true);
+            headerStyles[col] = cellFormat(0, HEADER_FONT, HEADER_FILL, 0, alignment, true, true);
+            totalsStyles[col] = cellFormat(numberFormat(getTotalsFormat(columnId, type)), 0, TOTALS_FILL, 0,
+                    alignment, true, false);
+        }
+        columnTotals = displayTotals ? new ColumnTotals(plan) : null;
+        widths = new EstimatedColumnWidthStrategy(widthSampleRows);
+        measureRows = isHierarchical();
+        widths.start(types, formats);
+        for (int col = 0; col < size; col++) {
+            widths.measure(col, holder.getColumnHeader(plan.getColumnId(col)));
+        }
+        maxOutlineLevel = 0;
+        markNextRowCollapsed = false;
+    }
+
+    /**
+     * Returns the data format of the column's data cells, the format set with
+     * setExcelFormatOfColumn() or the default format for the column type.
+     */
+    protected String getDataFormat(String columnId, Class<?> type) {
+        if (columnExcelFormatMap.containsKey(columnId)) {
+            return columnExcelFormatMap.get(columnId);
+        }
+        if (ExcelExport.isIntegerLongShortOrBigDecimal(type)) {
+            return integerDataFormat;
+        } else if (CellWriters.isDate(type)) {
+            return dateDataFormat;
+        }
+        return doubleDataFormat;
+    }
+
+    /**
+     * Returns the data format of the column's totals cell.
+     */
+    protected String getTotalsFormat(String columnId, Class<?> type) {
+        if (columnExcelFormatMap.containsKey(columnId)) {
+            return columnExcelFormatMap.get(columnId);
+        }
+        return ExcelExport.isIntegerLongShortOrBigDecimal(type) ? integerDataFormat : doubleDataFormat;
+    }
+
+    private int numberFormat(String format) {
+        if ("General".equals(format)) {
+            return 0;
+        }
+        return numberFormats.computeIfAbsent(format, f -> FIRST_CUSTOM_FORMAT + numberFormats.size());
+    }
+
+    private int cellFormat(int numberFormat, int font, int fill, int border, HorizontalAlignment alignment,
+            boolean centerVertically, boolean wrap) {
+        StringBuilder xf = new StringBuilder(160);
+        xf.append("<xf numFmtId=\"").append(numberFormat).append("\" fontId=\"").append(font)
+                .append("\" fillId=\"").append(fill).append("\" borderId=\"").append(border).append("\" xfId=\"0\"");
+        if (numberFormat != 0) {
+            xf.append(" applyNumberFormat=\"1\"");
+        }
+        if (font != 0) {
+            xf.append(" applyFont=\"1\"");
+        }
+        if (fill != 0) {
+            xf.append(" applyFill=\"1\"");
+        }
+        if (border != 0) {
+            xf.append(" applyBorder=\"1\"");
+        }
+        if (null == alignment && !centerVertically && !wrap) {
+            xf.append("/>");
+        } else {
+            xf.append(" applyAlignment=\"1\"><alignment");
+            if (null != alignment && alignment != HorizontalAlignment.GENERAL) {
+                xf.append(" horizontal=\"").append(horizontal(alignment)).append('"');
+            }
+            if (centerVertically) {
+                xf.append(" vertical=\"center\"");
+            }
+            if (wrap) {
+                xf.append(" wrapText=\"1\"");
+            }
+            xf.append("/></xf>");
+        }
+        return cellFormats.computeIfAbsent(xf.toString(), x -> cellFormats.size());
+    }
+
+    private static String horizontal(HorizontalAlignment alignment) {
+        switch (alignment) {
+        case CENTER_SELECTION:
+            return "centerContinuous";
+        default:
+            return alignment.name().toLowerCase();
+        }
+    }
+
+    private void writeSheetStart(boolean hasTitle, int headerRow) throws IOException {
+        out.append(XML_HEADER).append("<worksheet xmlns=\"").append(MAIN_NS).append("\" xmlns:r=\"").append(REL_NS)
+                .append("\"><sheetPr>");
+        if (isHierarchical()) {
+            out.append("<outlinePr summaryBelow=\"0\"/>");
+        }
+        out.append("<pageSetUpPr fitToPage=\"1\"/></sheetPr><sheetFormatPr defaultRowHeight=\"15\"");
+        if (maxOutlineLevel > 0) {
+            out.append(" outlineLevelRow=\"").append(maxOutlineLevel).append('"');
+        }
+        out.append("/>");
+        if (plan.size() > 0) {
+            out.append("<cols>");
+            for (int col = 0; col < plan.size(); col++) {
+                out.append("<col min=\"").append(col + 1).append("\" max=\"").append(col + 1).append("\" width=\"")
+                        .append(widths.getWidth(col) / 256.0).append("\" customWidth=\"1\"/>");
+            }
+            out.append("</cols>");
+        }
+        out.append("<sheetData>");
+        if (hasTitle) {
+            out.append("<row r=\"1\" ht=\"45\" customHeight=\"1\"><c r=\"A1\" s=\"")
+                    .append(cellFormat(0, TITLE_FONT, 0, 0, HorizontalAlignment.CENTER, true, false))
+                    .append("\" t=\"inlineStr\">");
+            appendInlineString(reportTitle);
+            out.append("</c></row>");
+        }
+        out.append("<row r=\"").append(headerRow + 1).append("\" ht=\"40\" customHeight=\"1\">");
+        for (int col = 0; col < plan.size(); col++) {
+            startCell(col, headerRow, headerStyles[col]);
+            out.append(" t=\"inlineStr\">");
+            appendInlineString(getTableHolder().getColumnHeader(plan.getColumnId(col)));
+            out.append("</c>");
+        }
+        out.append("</row>");
+    }
+
+    private void writeSheetEnd(boolean hasTitle) throws IOException {
+        out.append("</sheetData>");
+        if (hasTitle && plan.size() > 1) {
+            out.append("<mergeCells count=\"1\"><mergeCell ref=\"A1:").append(columnLetters[plan.size() - 1])
+                    .append("1\"/></mergeCells>");
+        }
+        out.append("<printOptions horizontalCentered=\"1\"/>")
+                .append("<pageMargins left=\"0.7\" right=\"0.7\" top=\"0.75\" bottom=\"0.75\" header=\"0.3\" footer=\"0.3\"/>")
+                .append("<pageSetup orientation=\"landscape\" fitToHeight=\"0\"/></worksheet>");
+    }
+
+    private int writeHierarchicalRows(int firstRow) {
+        int[] row = { firstRow };
+        try (Stream<?> roots = getTableHolder().streamRootItems()) {
+            Iterator<?> iterator = roots.iterator();
+            while (iterator.hasNext()) {
+                Object root = iterator.next();
+                boolean collapse = collapseRowGroup(root);
+                int rootRow = row[0];
+                writeRow(root, row[0]++, 0, false, true);
+                visitDescendants(root, (child, depth) -> writeRow(child, row[0]++, depth, collapse, false));
+                if (collapse && row[0] > rootRow + 1) {
+                    markNextRowCollapsed = true;
+                }
+            }
+        }
+        return row[0];
+    }
+
+    private void writeRow(Object item, int row, int level, boolean hidden, boolean totalled) {
+        try {
+            startRow(row);
+            if (level > 0) {
+                int outlineLevel = Math.min(level, RowOutline.MAX_LEVEL);
+                maxOutlineLevel = Math.max(maxOutlineLevel, outlineLevel);
+                out.append(" outlineLevel=\"").append(outlineLevel).append('"');
+                if (hidden) {
+                    out.append(" hidden=\"1\"");
+                }
+            }
+            out.append('>');
+            boolean measure = measureRows && widths.isMeasuring();
+            for (int col = 0; col < plan.size(); col++) {
+                Object value = plan.getValue(col, item);
+                if (totalled && null != columnTotals) {
+                    columnTotals.add(col, value);
+                }
+                if (measure) {
+                    widths.measure(col, value);
+                }
+                writeCell(col, row, value);
+            }
+            if (measure) {
+                widths.endRow();
+            }
+            out.append("</row>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        rowExported(totalled);
+    }
+
+    private void startRow(int row) throws IOException {
+        out.append("<row r=\"").append(row + 1).append('"');
+        if (markNextRowCollapsed) {
+            out.append(" collapsed=\"1\"");
+            markNextRowCollapsed = false;
+        }
+    }
+
+    private void startCell(int col, int row, int style) throws IOException {
+        out.append("<c r=\"").append(columnLetters[col]).append(row + 1).append("\" s=\"").append(style).append('"');
+    }
+
+    private void writeCell(int col, int row, Object value) throws IOException {
+        startCell(col, row, dataStyles[col]);
+        if (null == value) {
+            out.append("/>");
+            return;
+        }
+        switch (valueKinds[col]) {
+        case NUMBER:
+            if (value instanceof Number) {
+                writeNumber(((Number) value).doubleValue());
+            } else {
+                try {
+                    writeNumber(Double.parseDouble(value.toString()));
+                } catch (NumberFormatException nfe) {
+                    writeString(value.toString());
+                }
+            }
+            break;
+        case BOOLEAN:
+            if (value instanceof Boolean) {
+                writeBoolean((Boolean) value);
+            } else {
+                writeString(value.toString());
+            }
+            break;
+        case DATE:
+            double serial = cellWriters.toDateSerial(plan.getType(col), value);
+            if (serial != ExcelDateSerials.INVALID) {
+                writeNumber(serial);
+            } else {
+                writeString(value.toString());
+            }
+            break;
+        case CUSTOM:
+            writeScratchCell(col, value);
+            break;
+        default:
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes the value with the registered cell writer into the scratch cell and writes what was
+     * written.
+     */
+    private void writeScratchCell(int col, Object value) throws IOException {
+        Cell cell = scratchCell.blank();
+        plan.getCellWriter(col).write(cell, value);
+        switch (cell.getCellType()) {
+        case NUMERIC:
+            writeNumber(cell.getNumericCellValue());
+            break;
+        case STRING:
+            writeString(cell.getStringCellValue());
+            break;
+        case BOOLEAN:
+            writeBoolean(cell.getBooleanCellValue());
+            break;
+        default:
+            out.append("/>");
+        }
+    }
+
+    private void writeBoolean(boolean value) throws IOException {
+        out.append(" t=\"b\"><v>").append(value ? '1' : '0').append("</v></c>");
+    }
+
+    private void writeNumber(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append(" t=\"e\"><v>#NUM!</v></c>");
+        } else {
+            out.append("><v>").append(value).append("</v></c>");
+        }
+    }
+
+    private void writeString(String text) throws IOException {
+        out.append(" t=\"inlineStr\">");
+        appendInlineString(text);
+        out.append("</c>");
+    }
+
+    private void appendInlineString(String text) throws IOException {
+        boolean preserve = !text.isEmpty()
+                && (Character.isWhitespace(text.charAt(0)) || Character.isWhitespace(text.charAt(text.length() - 1)));
+        out.append(preserve ? "<is><t xml:space=\"preserve\">" : "<is><t>").appendEscaped(text).append("</t></is>");
+    }
+
+    private void writeTotalsRow(int headerRow, int row) throws IOException {
+        if (!displayTotals) {
+            if (markNextRowCollapsed) {
+                startRow(row);
+                out.append("/>");
+            }
+            return;
+        }
+        startRow(row);
+        out.append(" ht=\"30\" customHeight=\"1\">");
+        for (int col = 0; col < plan.size(); col++) {
+            startCell(col, row, totalsStyles[col]);
+            if (numericColumns[col]) {
+                if (isHierarchical()) {
+                    // the root rows hold the totals of their descendants, so only their sum is written
+                    out.append('>');
+                } else {
+                    out.append("><f>SUM(").append(columnLetters[col]).append(headerRow + 1).append(':')
+                            .append(columnLetters[col]).append(row).append(")</f>");
+                }
+                out.append("<v>").append(columnTotals.getSum(col)).append("</v></c>");
+            } else if (0 == col) {
+                writeString(getTotalHeader());
+            } else {
+                out.append("/>");
+            }
+        }
+        out.append("</row>");
+    }
+
+    /**
+     * Writes the workbook straight to the stream while the rows are read. Only hierarchical sheets
+     * are spooled to a temporary file before they are written.
+     */
+    @Override
+    public void exportTo(OutputStream out) throws IOException {
+        if (null == mimeType) {
+            setMimeType(XLSX_MIME_TYPE);
+        }
+        if (null != zip) {
+            // tables converted before are written to the temporary file
+            super.exportTo(out);
+            return;
+        }
+        try {
+            startWorkbook(out);
+            convertTable();
+            if (null != failure) {
+                throw failure;
+            }
+            writeWorkbookParts();
+            // finishes the zip without closing the stream
+            zip.finish();
+            zip.flush();
+        } finally {
+            zip = null;
+            zipWriter = null;
+            failure = null;
+        }
+    }
+
+    @Override
+    public File writeToTempFile() {
+        if (null == mimeType) {
+            setMimeType(XLSX_MIME_TYPE);
+        }
+        try {
+            if (null == zip && null == failure) {
+                startWorkbook();
+            }
+            if (null != failure) {
+                throw failure;
+            }
+            writeWorkbookParts();
+            zip.close();
+            return xlsxFile;
+        } catch (IOException e) {
+            LOGGER.warning("Converting to XLSX failed with IOException " + e);
+            if (null != zip) {
+                try {
+                    zip.close();
+                } catch (IOException ce) {
+                    // already failed
+                }
+            }
+            if (null != xlsxFile) {
+                getTempFileManager().release(xlsxFile);
+            }
+            return null;
+        } finally {
+            xlsxFile = null;
+            zip = null;
+            zipWriter = null;
+            failure = null;
+        }
+    }
+
+    /**
+     * Closes the workbook written so far and deletes its temporary file.
+     */
+    @Override
+    public void discard() {
+        if (null != zip) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // discarded anyway
+            }
+        }
+        if (null != xlsxFile) {
+            getTempFileManager().release(xlsxFile);
+        }
+        xlsxFile = null;
+        zip = null;
+        zipWriter = null;
+        failure = null;
+    }
+
+    private void writeWorkbookParts() throws IOException {
+        XmlCharBuffer part = new XmlCharBuffer(zipWriter, 1 << 12);
+        int sheets = sheetNames.size();
+
+        putPart("[Content_Types].xml");
+        part.append(XML_HEADER)
+                .append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+                .append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+                .append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+                .append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>")
+                .append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        for (int i = 1; i <= sheets; i++) {
+            part.append("<Override PartName=\"/xl/worksheets/sheet").append(i)
+                    .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        part.append("</Types>");
+        closePart(part);
+
+        putPart("_rels/.rels");
+        part.append(XML_HEADER)
+                .append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">")
+                .append("<Relationship Id=\"rId1\" Type=\"").append(REL_NS)
+                .append("/officeDocument\" Target=\"xl/workbook.xml\"/></Relationships>");
+        closePart(part);
+
+        putPart("xl/workbook.xml");
+        part.append(XML_HEADER).append("<workbook xmlns=\"").append(MAIN_NS).append("\" xmlns:r=\"").append(REL_NS)
+                .append("\"><sheets>");
+        for (int i = 1; i <= sheets; i++) {
+            part.append("<sheet name=\"").appendEscaped(sheetNames.get(i - 1)).append("\" sheetId=\"").append(i)
+                    .append("\" r:id=\"rId").append(i).append("\"/>");
+        }
+        // the totals carry their cached results; let Excel recalculate the formulas on load
+        part.append("</sheets><calcPr fullCalcOnLoad=\"1\"/></workbook>");
+        closePart(part);
+
+        putPart("xl/_rels/workbook.xml.rels");
+        part.append(XML_HEADER)
+                .append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 1; i <= sheets; i++) {
+            part.append("<Relationship Id=\"rId").append(i).append("\" Type=\"").append(REL_NS)
+                    .append("/worksheet\" Target=\"worksheets/sheet").append(i).append(".xml\"/>");
+        }
+        part.append("<Relationship Id=\"rId").append(sheets + 1).append("\" Type=\"").append(REL_NS)
+                .append("/styles\" Target=\"styles.xml\"/></Relationships>");
+        closePart(part);
+
+        putPart("xl/styles.xml");
+        part.append(XML_HEADER).append("<styleSheet xmlns=\"").append(MAIN_NS).append("\">");
+        if (!numberFormats.isEmpty()) {
+            part.append("<numFmts count=\"").append(numberFormats.size()).append("\">");
+            for (Map.Entry<String, Integer> format : numberFormats.entrySet()) {
+                part.append("<numFmt numFmtId=\"").append(format.getValue()).append("\" formatCode=\"")
+                        .appendEscaped(format.getKey()).append("\"/>");
+            }
+            part.append("</numFmts>");
+        }
+        part.append("<fonts count=\"3\">")
+                .append("<font><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font>")
+                .append("<font><b/><sz val=\"18\"/><name val=\"Calibri\"/><family val=\"2\"/></font>")
+                .append("<font><sz val=\"11\"/><color indexed=\"9\"/><name val=\"Calibri\"/><family val=\"2\"/></font>")
+                .append("</fonts><fills count=\"4\">")
+                .append("<fill><patternFill patternType=\"none\"/></fill>")
+                .append("<fill><patternFill patternType=\"gray125\"/></fill>")
+                .append("<fill><patternFill patternType=\"solid\"><fgColor indexed=\"23\"/></patternFill></fill>")
+                .append("<fill><patternFill patternType=\"solid\"><fgColor indexed=\"22\"/></patternFill></fill>")
+                .append("</fills><borders count=\"2\">")
+                .append("<border><left/><right/><top/><bottom/><diagonal/></border>")
+                .append("<border><left style=\"thin\"><color indexed=\"8\"/></left>")
+                .append("<right style=\"thin\"><color indexed=\"8\"/></right>")
+                .append("<top style=\"thin\"><color indexed=\"8\"/></top>")
+                .append("<bottom style=\"thin\"><color indexed=\"8\"/></bottom><diagonal/></border>")
+                .append("</borders><cellStyleXfs count=\"1\">")
+                .append("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>")
+                .append("<cellXfs count=\"").append(cellFormats.size()).append("\">");
+        for (String xf : cellFormats.keySet()) {
+            part.append(xf);
+        }
+        part.append("</cellXfs><cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/>")
+                .append("</cellStyles></styleSheet>");
+        closePart(part);
+    }
+
+    private void putPart(String name) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+    }
+
+    private void closePart(XmlCharBuffer part) throws IOException {
+        part.flush();
+        zipWriter.flush();
+        zip.closeEntry();
+    }
+
+    @Override
+    public String getDoubleDataFormat() {
+        return doubleDataFormat;
+    }
+
+    @Override
+    public void setDoubleDataFormat(String excelDoubleFormat) {
+        this.doubleDataFormat = excelDoubleFormat;
+    }
+
+    @Override
+    public String getIntegerDataFormat() {
+        return integerDataFormat;
+    }
+
+    @Override
+    public void setIntegerDataFormat(String excelIntegerFormat) {
+        this.integerDataFormat = excelIntegerFormat;
+    }
+
+    @Override
+    public String getDateDataFormat() {
+        return dateDataFormat;
+    }
+
+    @Override
+    public void setDateDataFormat(String excelDateFormat) {
+        this.dateDataFormat = excelDateFormat;
+    }
+
+    /**
+     * Registers the writer for the values of columns of the given type and its subtypes. This
+     * should be called before convertTable() is called.
+     *
+     * @param type   the column type
+     * @param writer the cell writer
+     */
+    public void setCellWriter(Class<?> type, CellWriter writer) {
+        cellWriters.register(type, writer);
+    }
+
+    /**
+     * Sets the number of rows the column widths are estimated from, in addition to the headers.
+     * For flat tables these rows are held in memory until the column widths have been written.
+     *
+     * @param widthSampleRows the number of rows
+     */
+    public void setWidthSampleRows(int widthSampleRows) {
+        this.widthSampleRows = widthSampleRows;
+    }
+
+    /**
+     * Sets the zip compression level, from 0 (no compression) to 9, trading file size for export
+     * speed. By default the zip default level is used.
+     *
+     * @param compressionLevel the compression level, or -1 for the default level
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+}
@@ -0,0 +1,174 @@
+package com.vaadin.addon.tableexport;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Reusable character buffer for writing XML to a {@link Writer}. Texts are escaped and numbers
+ * are formatted straight into the buffer, without creating intermediate Strings for integral
+ * numbers and for decimals with up to four fraction digits.
+ */
+final class XmlCharBuffer {
+
+    private static final double[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000 };
+
+    /** Largest magnitude whose integral values are written digit by digit, below 2^53. */
+    private static final double MAX_EXACT = 1e15;
+
+    private final Writer out;
+    private final char[] buffer;
+    private int position = 0;
+
+    XmlCharBuffer(Writer out, int capacity) {
+        this.out = out;
+        this.buffer = new char[Math.max(capacity, 64)];
+    }
+
+    XmlCharBuffer append(char c) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = c;
+        return this;
+    }
+
+    XmlCharBuffer append(String s) throws IOException {
+        int length = s.length();
+        if (length > buffer.length - position) {
+            flush();
+            if (length > buffer.length) {
+                out.write(s);
+                return this;
+            }
+        }
+        s.getChars(0, length, buffer, position);
+        position += length;
+        return this;
+    }
+
+    XmlCharBuffer append(char[] chars) throws IOException {
+        int length = chars.length;
+        if (length > buffer.length - position) {
+            flush();
+            if (length > buffer.length) {
+                out.write(chars);
+                return this;
+            }
+        }
+        System.arraycopy(chars, 0, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of the value.
+     */
+    XmlCharBuffer append(long value) throws IOException {
+        if (buffer.length - position < 20) {
+            flush();
+        }
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return append(Long.toString(value));
+            }
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int end = position + digits(value);
+        int i = end;
+        do {
+            buffer[--i] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        position = end;
+        return this;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Appends a finite number in a form that parses back to exactly the same double.
+     */
+    XmlCharBuffer append(double value) throws IOException {
+        if (Math.abs(value) < MAX_EXACT) {
+            for (int scale = 0; scale < POWERS_OF_TEN.length; scale++) {
+                double scaled = value * POWERS_OF_TEN[scale];
+                double rounded = Math.rint(scaled);
+                // m / 10^k is correctly rounded, so it equals the parsed value of its digits
+                if (rounded / POWERS_OF_TEN[scale] == value && Math.abs(rounded) < MAX_EXACT) {
+                    appendScaled((long) rounded, scale, value < 0);
+                    return this;
+                }
+            }
+        }
+        return append(Double.toString(value));
+    }
+
+    private void appendScaled(long unscaled, int scale, boolean negative) throws IOException {
+        if (negative) {
+            append('-');
+        }
+        long magnitude = Math.abs(unscaled);
+        if (scale == 0) {
+            append(magnitude);
+            return;
+        }
+        long divisor = (long) POWERS_OF_TEN[scale];
+        append(magnitude / divisor);
+        long fraction = magnitude % divisor;
+        if (fraction == 0) {
+            return;
+        }
+        append('.');
+        for (long digit = divisor / 10; digit > 0 && fraction > 0; digit /= 10) {
+            append((char) ('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+
+    /**
+     * Appends the text escaped for XML element content and attribute values. Characters XML
+     * cannot represent are left out.
+     */
+    XmlCharBuffer appendEscaped(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                append("&amp;");
+                break;
+            case '<':
+                append("&lt;");
+                break;
+            case '>':
+                append("&gt;");
+                break;
+            case '"':
+                append("&quot;");
+                break;
+            default:
+                if (c >= 0x20 ? c < 0xFFFE : (c == '\t' || c == '\n' || c == '\r')) {
+                    append(c);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes the buffered characters to the writer.
+     */
+    void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}